@@ -0,0 +1,114 @@
+package com.github.vase4kin;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed-size direct buffers which large service messages are rendered into, so huge failure
+ * details never need a humongous heap array. Released chunks are kept up to the pool size,
+ * more chunks are allocated on demand and left to the garbage collector when released.
+ */
+class ChunkPool {
+
+    private static ChunkPool instance;
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+
+    /**
+     * @param chunkSize bytes in a chunk
+     * @param maxPooled number of released chunks kept for reuse
+     */
+    ChunkPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Run-wide pool shared by all listener instances, its usage is reported when the run is finished
+     */
+    static synchronized ChunkPool getInstance(final ServiceMessageSink sink, int chunkSize, int maxPooled) {
+        if (instance == null) {
+            instance = new ChunkPool(chunkSize, maxPooled);
+            final ChunkPool pool = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    pool.report(sink);
+                }
+            });
+        }
+        return instance;
+    }
+
+    ByteBuffer acquire() {
+        acquired.incrementAndGet();
+        int used = inUse.incrementAndGet();
+        int peak;
+        while (used > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, used)) {
+            // retry until the peak is updated by this or a larger value
+        }
+        ByteBuffer chunk = pooled.poll();
+        if (chunk != null) {
+            pooledCount.decrementAndGet();
+            chunk.clear();
+            return chunk;
+        }
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    void release(ByteBuffer chunk) {
+        inUse.decrementAndGet();
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            pooled.offer(chunk);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    long getAllocated() {
+        return allocated.get();
+    }
+
+    long getAcquired() {
+        return acquired.get();
+    }
+
+    int getInUse() {
+        return inUse.get();
+    }
+
+    int getPeakInUse() {
+        return peakInUse.get();
+    }
+
+    void report(ServiceMessageSink sink) {
+        printStatistic(sink, "teamcity.steplistener.chunks.allocated", allocated.get());
+        printStatistic(sink, "teamcity.steplistener.chunks.acquired", acquired.get());
+        printStatistic(sink, "teamcity.steplistener.chunks.peakInUse", peakInUse.get());
+        printStatistic(sink, "teamcity.steplistener.chunks.peakBytes", (long) peakInUse.get() * chunkSize);
+    }
+
+    private static void printStatistic(ServiceMessageSink sink, String key, long value) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("key", key);
+        properties.put("value", String.valueOf(value));
+        sink.print(ServiceMessages.format("buildStatisticValue", properties));
+    }
+}
@@ -0,0 +1,204 @@
+package com.github.vase4kin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Service message rendered as UTF-8 into pooled direct chunks. Text is appended either as is
+ * or escaped as a service message value, with the same output as {@link ServiceMessages#escapeValue}
+ * for the whole escaped section. Chunks must be returned with {@link #release()}.
+ */
+class ChunkedMessage implements Appendable {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ChunkPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long length;
+    private boolean escaping;
+    private boolean pendingBackslash;
+
+    /**
+     * Text streamed into a message instead of being built as a string first
+     */
+    interface Content {
+
+        void appendTo(Appendable out) throws IOException;
+    }
+
+    ChunkedMessage(ChunkPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Appends following text escaped until {@link #endEscaped()}
+     */
+    ChunkedMessage startEscaped() {
+        escaping = true;
+        return this;
+    }
+
+    ChunkedMessage endEscaped() {
+        if (pendingBackslash) {
+            pendingBackslash = false;
+            put('\\');
+        }
+        escaping = false;
+        return this;
+    }
+
+    @Override
+    public ChunkedMessage append(CharSequence text) {
+        if (text == null) {
+            text = "null";
+        }
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public ChunkedMessage append(CharSequence text, int start, int end) {
+        if (text == null) {
+            text = "null";
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                appendCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else {
+                append(c);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public ChunkedMessage append(char c) {
+        if (!escaping) {
+            put(c);
+            return this;
+        }
+        if (pendingBackslash) {
+            pendingBackslash = false;
+            if (c == '|') {
+                put('|');
+                put('|');
+                return this;
+            }
+            if (c == '[' || c == ']') {
+                put('|');
+                put('|');
+                put(c);
+                return this;
+            }
+            put('\\');
+        }
+        switch (c) {
+            case '\\':
+                pendingBackslash = true;
+                break;
+            case '\'':
+                put('|');
+                put('\'');
+                break;
+            case '\n':
+                put('|');
+                put('n');
+                break;
+            case '\r':
+                put('|');
+                put('r');
+                break;
+            case '[':
+            case ']':
+                put('|');
+                put(c);
+                break;
+            default:
+                put(c);
+        }
+        return this;
+    }
+
+    /**
+     * @return number of encoded bytes
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * @return read-only views of the written bytes for a gathering write
+     */
+    ByteBuffer[] getBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            ByteBuffer buffer = chunks.get(i).asReadOnlyBuffer();
+            buffer.flip();
+            buffers[i] = buffer;
+        }
+        return buffers;
+    }
+
+    /**
+     * Decodes the whole message, for sinks which only take strings
+     */
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        for (ByteBuffer buffer : getBuffers()) {
+            int remaining = buffer.remaining();
+            buffer.get(bytes, offset, remaining);
+            offset += remaining;
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    void release() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+        length = 0;
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (pendingBackslash) {
+            pendingBackslash = false;
+            put('\\');
+        }
+        putByte(0xf0 | codePoint >> 18);
+        putByte(0x80 | codePoint >> 12 & 0x3f);
+        putByte(0x80 | codePoint >> 6 & 0x3f);
+        putByte(0x80 | codePoint & 0x3f);
+    }
+
+    private void put(char c) {
+        if (c < 0x80) {
+            putByte(c);
+        } else if (c < 0x800) {
+            putByte(0xc0 | c >> 6);
+            putByte(0x80 | c & 0x3f);
+        } else if (Character.isSurrogate(c)) {
+            putByte('?');
+        } else {
+            putByte(0xe0 | c >> 12);
+            putByte(0x80 | c >> 6 & 0x3f);
+            putByte(0x80 | c & 0x3f);
+        }
+    }
+
+    private void putByte(int b) {
+        if (current == null || !current.hasRemaining()) {
+            current = pool.acquire();
+            chunks.add(current);
+        }
+        current.put((byte) b);
+        length++;
+    }
+}
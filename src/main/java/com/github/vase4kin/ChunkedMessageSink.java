@@ -0,0 +1,12 @@
+package com.github.vase4kin;
+
+/**
+ * Sink which writes messages rendered into direct chunks without decoding them into a string
+ */
+interface ChunkedMessageSink extends ServiceMessageSink {
+
+    /**
+     * Writes the message followed by a line separator, the message is released by the caller
+     */
+    void print(ChunkedMessage message);
+}
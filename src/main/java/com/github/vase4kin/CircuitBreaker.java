@@ -0,0 +1,149 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.FailureCause;
+import net.thucydides.core.model.TestOutcome;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Detects systemic failures: trips when the same normalized failure cause dominates
+ * a sliding window of the last finished tests. The window is a lock-free ring of cause hashes,
+ * so tests finishing in parallel never wait for each other.
+ * Runners can check {@link #isOpen()} to skip the remaining tests once the breaker has tripped.
+ */
+public class CircuitBreaker {
+
+    static final String OPEN_PROPERTY = "teamcity.steplistener.circuitBreaker.open";
+
+    private static final long PASSED = 0;
+    private static final int MAX_DESCRIPTION_LENGTH = 4000;
+
+    private static volatile CircuitBreaker instance;
+
+    private final int window;
+    private final int threshold;
+    private final AtomicLongArray causes;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicBoolean tripped = new AtomicBoolean();
+    private final AtomicReference<String> trippedCause = new AtomicReference<>();
+
+    /**
+     * @param window           number of the last finished tests watched
+     * @param thresholdPercent percentage of the window failed with the same cause to trip the breaker
+     */
+    CircuitBreaker(int window, int thresholdPercent) {
+        this.window = window;
+        this.threshold = Math.max(1, (int) Math.ceil(window * thresholdPercent / 100.0));
+        this.causes = new AtomicLongArray(window);
+    }
+
+    /**
+     * Run-wide breaker shared by all listener instances
+     */
+    static synchronized CircuitBreaker getInstance(int window, int thresholdPercent) {
+        if (instance == null) {
+            instance = new CircuitBreaker(window, thresholdPercent);
+        }
+        return instance;
+    }
+
+    /**
+     * @return true if the breaker of this run has tripped and the remaining tests can be skipped
+     */
+    public static boolean isOpen() {
+        CircuitBreaker breaker = instance;
+        return breaker != null && breaker.isTripped();
+    }
+
+    /**
+     * @return normalized dominant failure cause or null if the breaker has not tripped
+     */
+    public static String getOpenCause() {
+        CircuitBreaker breaker = instance;
+        return breaker != null ? breaker.getTrippedCause() : null;
+    }
+
+    /**
+     * Records the finished test
+     *
+     * @return normalized dominant failure cause if this call tripped the breaker, null otherwise
+     */
+    String record(TestOutcome outcome) {
+        if (!(outcome.isFailure() || outcome.isError())) {
+            causes.set(slot(), PASSED);
+            return null;
+        }
+        String cause = normalizeCause(outcome.getTestFailureCause());
+        long hash = hash(cause);
+        long position = sequence.getAndIncrement();
+        causes.set((int) (position % window), hash);
+        if (position + 1 < window || tripped.get() || count(hash) < threshold) {
+            return null;
+        }
+        if (!tripped.compareAndSet(false, true)) {
+            return null;
+        }
+        trippedCause.set(cause);
+        System.setProperty(OPEN_PROPERTY, "true");
+        return cause;
+    }
+
+    boolean isTripped() {
+        return tripped.get();
+    }
+
+    String getTrippedCause() {
+        return trippedCause.get();
+    }
+
+    /**
+     * @return buildProblem message reporting the tripped breaker
+     */
+    String formatBuildProblem(String cause) {
+        String description = String.format("Circuit breaker: %d of the last %d tests failed with %s", count(hash(cause)), window, cause);
+        if (description.length() > MAX_DESCRIPTION_LENGTH) {
+            description = description.substring(0, MAX_DESCRIPTION_LENGTH);
+        }
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("description", description);
+        properties.put("identity", "circuitBreaker" + Long.toHexString(hash(cause)));
+        return ServiceMessages.format("buildProblem", properties);
+    }
+
+    private int slot() {
+        return (int) (sequence.getAndIncrement() % window);
+    }
+
+    private int count(long hash) {
+        int count = 0;
+        for (int i = 0; i < window; i++) {
+            if (causes.get(i) == hash) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Error type and the first line of the failure message with quoted arguments
+     * and numbers replaced, so timeouts waiting for different elements are one cause
+     */
+    static String normalizeCause(FailureCause failureCause) {
+        if (failureCause == null) {
+            return "unknown";
+        }
+        String message = failureCause.getMessage() != null ? OutputBudget.getFirstLine(failureCause.getMessage()) : "";
+        String errorType = failureCause.getErrorType() != null ? failureCause.getErrorType() : "unknown";
+        return message.isEmpty() ? errorType : errorType + ": " + StepProfiler.normalize(message);
+    }
+
+    private static long hash(String cause) {
+        // never 0, which is reserved for passed tests
+        return DurationIndex.hash(cause);
+    }
+}
@@ -0,0 +1,442 @@
+package com.github.vase4kin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Sends service messages to a remote results collector over TCP.
+ * Test threads only offer messages to a bounded queue, a background sender collects them into batches
+ * by size and age and writes every batch as a frame: 4-byte length, 1-byte flags and UTF-8 lines,
+ * optionally deflated. Writes are non-blocking with a timeout, while the collector is unreachable
+ * batches are spilled to a bounded file and sent first after reconnecting.
+ * Messages are dropped when both the queue and the spill file are full, and when they are still
+ * not sent once the run is finished: the JVM exit waits only a short time for the queue, not for
+ * the collector to come back, and the spill file is deleted. Dropped messages are reported as a warning.
+ */
+public class CollectorSink implements ServiceMessageSink {
+
+    static final int FLAG_DEFLATED = 1;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long WRITE_TIMEOUT_MILLIS = 5000;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 10000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 3000;
+
+    private static CollectorSink instance;
+
+    private final InetSocketAddress address;
+    private final BlockingQueue<String> queue;
+    private final int batchBytes;
+    private final long lingerMillis;
+    private final boolean compress;
+    private final File spillFile;
+    private final long maxSpillBytes;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long spilledBytes;
+    private volatile boolean closed;
+    private volatile boolean lost;
+    private final Thread sender;
+
+    // accessed by the sender thread only
+    private SocketChannel channel;
+    private Selector selector;
+    private long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+    private long nextConnectTime;
+    private FileChannel spill;
+    private long spillSent;
+    private long spilledMessages;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * @param queueSize     number of messages waiting to be sent in memory
+     * @param batchBytes    batch is sent once it has at least this number of bytes
+     * @param lingerMillis  batch is sent once its first message waited this long
+     * @param spillFile     file for batches which can't be sent, null to drop them
+     * @param maxSpillBytes maximum size of the spill file
+     */
+    CollectorSink(InetSocketAddress address, int queueSize, int batchBytes, long lingerMillis, boolean compress,
+                  File spillFile, long maxSpillBytes) {
+        this.address = address;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchBytes = batchBytes;
+        this.lingerMillis = lingerMillis;
+        this.compress = compress;
+        this.spillFile = spillFile;
+        this.maxSpillBytes = maxSpillBytes;
+        this.sender = new Thread("teamcity-steplistener-collector") {
+            @Override
+            public void run() {
+                send();
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Run-wide sink shared by all listener instances, flushed when the run is finished
+     *
+     * @param collector host:port of the collector
+     */
+    static synchronized CollectorSink getInstance(final ServiceMessageSink warningSink, final String collector, int queueSize,
+                                                  int batchBytes, long lingerMillis, boolean compress, File spillDirectory,
+                                                  long maxSpillBytes) {
+        if (instance == null) {
+            int colon = collector.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(collector.substring(0, colon), Integer.parseInt(collector.substring(colon + 1)));
+            File spillFile = spillDirectory != null
+                    ? new File(spillDirectory, "teamcity-steplistener-spill-" + System.nanoTime() + ".bin")
+                    : null;
+            instance = new CollectorSink(address, queueSize, batchBytes, lingerMillis, compress, spillFile, maxSpillBytes);
+            final CollectorSink sink = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    sink.close(CLOSE_TIMEOUT_MILLIS);
+                    if (sink.getDroppedCount() > 0) {
+                        Map<String, String> properties = new LinkedHashMap<>();
+                        properties.put("text", sink.getDroppedCount() + " service messages were not sent to the collector " + collector);
+                        properties.put("status", "WARNING");
+                        warningSink.print(ServiceMessages.format("message", properties));
+                    }
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Never blocks, the message is dropped if the queue is full
+     */
+    @Override
+    public void print(String message) {
+        pending.incrementAndGet();
+        if (!queue.offer(message)) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    long getSentCount() {
+        return sent.get();
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until all queued and spilled messages are sent
+     *
+     * @return true if everything was sent before timeout
+     */
+    boolean flush(long timeoutMillis) {
+        return await(timeoutMillis, true);
+    }
+
+    /**
+     * Waits until queued messages are sent or spilled, not for spilled ones, and stops the sender.
+     * Messages which were not sent are dropped and the spill file is deleted.
+     *
+     * @return true if nothing was dropped on close
+     */
+    boolean close(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        await(timeoutMillis, false);
+        closed = true;
+        sender.interrupt();
+        try {
+            sender.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !sender.isAlive() && !lost;
+    }
+
+    private boolean await(long timeoutMillis, boolean spilled) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0 || spilled && spilledBytes > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void send() {
+        List<String> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                if (closed) {
+                    break;
+                }
+            }
+            if (batch.isEmpty()) {
+                if (spilledBytes > 0 && connect()) {
+                    sendSpill();
+                }
+                continue;
+            }
+            ByteBuffer frame = encode(batch);
+            boolean written = connect() && sendSpill() && write(frame);
+            if (written) {
+                sent.addAndGet(batch.size());
+            } else {
+                frame.rewind();
+                spill(frame, batch.size());
+            }
+            pending.addAndGet(-batch.size());
+            batch.clear();
+        }
+        disconnect();
+        long unsent = batch.size() + queue.size() + spilledMessages;
+        queue.clear();
+        closeSpill();
+        if (unsent > 0) {
+            lost = true;
+            dropped.addAndGet(unsent);
+        }
+    }
+
+    private void collect(List<String> batch) throws InterruptedException {
+        String first = queue.poll(lingerMillis, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        int size = first.length();
+        long deadline = System.currentTimeMillis() + lingerMillis;
+        while (size < batchBytes) {
+            long remaining = deadline - System.currentTimeMillis();
+            String message = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+            if (message == null) {
+                return;
+            }
+            batch.add(message);
+            size += message.length() + 1;
+        }
+    }
+
+    ByteBuffer encode(List<String> batch) {
+        StringBuilder builder = new StringBuilder();
+        for (String message : batch) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(message);
+        }
+        byte[] payload = builder.toString().getBytes(UTF_8);
+        int flags = 0;
+        if (compress) {
+            deflater.reset();
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, payload.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            payload = Arrays.copyOf(buffer, length);
+            flags |= FLAG_DEFLATED;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(5 + payload.length);
+        frame.putInt(1 + payload.length).put((byte) flags).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private boolean connect() {
+        if (channel != null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextConnectTime) {
+            return false;
+        }
+        try {
+            selector = Selector.open();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (!channel.connect(address)) {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+                if (selector.select(CONNECT_TIMEOUT_MILLIS) == 0 || !channel.finishConnect()) {
+                    throw new IOException("Connection timeout");
+                }
+                key.interestOps(0);
+                selector.selectedKeys().clear();
+            } else {
+                channel.register(selector, 0);
+            }
+            reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+            return true;
+        } catch (IOException e) {
+            disconnect();
+            nextConnectTime = now + reconnectDelay;
+            reconnectDelay = Math.min(MAX_RECONNECT_DELAY_MILLIS, reconnectDelay * 2);
+            return false;
+        }
+    }
+
+    private boolean write(ByteBuffer buffer) {
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MILLIS;
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) > 0 || !buffer.hasRemaining()) {
+                    continue;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Write timeout");
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+                key.interestOps(0);
+            }
+            return true;
+        } catch (IOException e) {
+            disconnect();
+            nextConnectTime = System.currentTimeMillis() + reconnectDelay;
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            // the connection is dropped anyway
+        }
+        channel = null;
+        selector = null;
+    }
+
+    private void spill(ByteBuffer frame, int messages) {
+        try {
+            if (spillFile == null || spilledBytes + 4 + frame.remaining() > maxSpillBytes) {
+                dropped.addAndGet(messages);
+                return;
+            }
+            if (spill == null) {
+                spill = new RandomAccessFile(spillFile, "rw").getChannel();
+            }
+            // every frame is spilled with the number of its messages
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(messages);
+            header.flip();
+            spill.position(spilledBytes);
+            while (header.hasRemaining()) {
+                spill.write(header);
+            }
+            while (frame.hasRemaining()) {
+                spill.write(frame);
+            }
+            spilledBytes = spill.position();
+            spilledMessages += messages;
+        } catch (IOException e) {
+            dropped.addAndGet(messages);
+        }
+    }
+
+    /**
+     * Sends spilled frames before new ones to keep the order of messages. Sending resumes after
+     * the last frame written in full, so the collector doesn't get a frame twice.
+     *
+     * @return true if the spill file is empty
+     */
+    private boolean sendSpill() {
+        if (spilledBytes == 0) {
+            return true;
+        }
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            ByteBuffer frame = ByteBuffer.allocate(0);
+            while (spillSent < spilledBytes) {
+                header.clear();
+                readFully(header, spillSent);
+                int messages = header.getInt(0);
+                int length = header.getInt(4);
+                if (frame.capacity() < 4 + length) {
+                    frame = ByteBuffer.allocate(4 + length);
+                }
+                frame.clear().limit(4 + length);
+                readFully(frame, spillSent + 4);
+                if (!write(frame)) {
+                    return false;
+                }
+                spillSent += 8 + length;
+                sent.addAndGet(messages);
+                spilledMessages -= messages;
+            }
+            spill.truncate(0);
+            spilledBytes = 0;
+            spillSent = 0;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (spill.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated spill file " + spillFile);
+            }
+        }
+        buffer.flip();
+    }
+
+    private void closeSpill() {
+        try {
+            if (spill != null) {
+                spill.close();
+                spillFile.delete();
+            }
+        } catch (IOException e) {
+            // nothing to clean up
+        }
+        spilledBytes = 0;
+        spillSent = 0;
+        spilledMessages = 0;
+    }
+}
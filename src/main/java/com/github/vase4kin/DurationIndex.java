@@ -0,0 +1,124 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Test durations of a previous run keyed by a 64-bit hash of "suite#method".
+ * An open-addressing table of primitive longs, filled once and read without locking.
+ */
+class DurationIndex {
+
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private long[] durations;
+    private int size;
+    private long totalDuration;
+
+    DurationIndex() {
+        keys = new long[1024];
+        durations = new long[1024];
+    }
+
+    /**
+     * Reads test durations recorded by {@link DurationRecorder} from a file or all files of a directory,
+     * tests recorded several times keep the last duration
+     */
+    static DurationIndex read(File file) throws IOException {
+        DurationIndex index = new DurationIndex();
+        File[] files = file.isDirectory() ? file.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(DurationRecorder.FILE_PREFIX) && name.endsWith(DurationRecorder.FILE_SUFFIX);
+            }
+        }) : new File[]{file};
+        if (files == null) {
+            return index;
+        }
+        Arrays.sort(files);
+        for (File durationsFile : files) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(durationsFile), Charset.forName("UTF-8")))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 4 && fields[0].equals("T")) {
+                        try {
+                            index.put(hash(fields[1] + "#" + fields[2]), Long.parseLong(fields[3]));
+                        } catch (NumberFormatException e) {
+                            // a line of a file truncated by a killed fork
+                        }
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    void put(long key, long duration) {
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        int slot = find(keys, key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        } else {
+            totalDuration -= durations[slot];
+        }
+        durations[slot] = duration;
+        totalDuration += duration;
+    }
+
+    /**
+     * @return recorded duration or -1 if the test is unknown
+     */
+    long get(long key) {
+        int slot = find(keys, key);
+        return keys[slot] == EMPTY ? -1 : durations[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getTotalDuration() {
+        return totalDuration;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldDurations = durations;
+        keys = new long[oldKeys.length * 2];
+        durations = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                durations[slot] = oldDurations[i];
+            }
+        }
+    }
+
+    private static int find(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * 64-bit FNV-1a hash, never 0
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Records suite and test durations of the run for {@link ShardPlanner}.
+ * Every test JVM writes its own tab separated file to the durations directory:
+ * "S suite durationMs" lines for suites and "T suite method durationMs" lines for tests.
+ * Suites of test classes are recorded as surefire include patterns, e.g. com/example/LoginTest.java,
+ * other suites such as JBehave stories under their names, which are used for progress estimation only.
+ */
+class DurationRecorder {
+
+    static final String FILE_PREFIX = "durations-";
+    static final String FILE_SUFFIX = ".tsv";
+
+    private static DurationRecorder instance;
+
+    private final File file;
+    private final ServiceMessageSink sink;
+    private Writer writer;
+    private boolean failed;
+
+    /**
+     * @param sink sink for warnings when durations can't be written
+     */
+    DurationRecorder(File file, ServiceMessageSink sink) {
+        this.file = file;
+        this.sink = sink;
+    }
+
+    /**
+     * Run-wide recorder shared by all listener instances, writes to a new file in the directory
+     */
+    static synchronized DurationRecorder getInstance(File directory, ServiceMessageSink sink) {
+        if (instance == null) {
+            String name = FILE_PREFIX + System.currentTimeMillis() + "-" + Integer.toHexString(new Random().nextInt()) + FILE_SUFFIX;
+            instance = new DurationRecorder(new File(directory, name), sink);
+            final DurationRecorder recorder = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.close();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * @return surefire include of the test class or the suite name if surefire can't select the suite
+     */
+    static String getSuite(Class<?> testClass, String suiteName) {
+        if (testClass == null || testClass.getEnclosingClass() != null) {
+            return suiteName;
+        }
+        return testClass.getName().replace('.', '/') + ".java";
+    }
+
+    synchronized void recordSuite(String suite, long duration) {
+        write("S\t" + clean(suite) + "\t" + duration + "\n");
+    }
+
+    synchronized void recordTest(String suite, String method, long duration) {
+        write("T\t" + clean(suite) + "\t" + clean(method) + "\t" + duration + "\n");
+    }
+
+    synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                printWarning("Can't write durations " + file + ": " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private void write(String line) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                File parent = file.getAbsoluteFile().getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Can't create directory " + parent);
+                }
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8")));
+            }
+            writer.write(line);
+        } catch (IOException e) {
+            // durations are optional, the run is not affected
+            failed = true;
+            printWarning("Can't write durations " + file + ", recording is stopped: " + e.getMessage());
+        }
+    }
+
+    private void printWarning(String text) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("text", text);
+        properties.put("status", "WARNING");
+        sink.print(ServiceMessages.format("message", properties));
+    }
+
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.vase4kin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of escaped service message values: step descriptions, suite names and test titles
+ * repeat heavily across a run. A direct-mapped table indexed by the string hash, a new value
+ * evicts the value in its slot. Keys are compared by identity first, so the same String instance
+ * is found without comparing characters. Lock-free, safe for parallel listeners.
+ */
+class EscapeCache {
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final int maxLength;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param size      number of entries, rounded up to a power of two
+     * @param maxLength values longer than this are escaped without caching
+     */
+    EscapeCache(int size, int maxLength) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.maxLength = maxLength;
+    }
+
+    String escape(String value) {
+        if (value.length() > maxLength) {
+            return ServiceMessages.escapeValue(value);
+        }
+        int hash = value.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        Entry entry = entries.get(slot);
+        if (entry != null && (entry.value == value || entry.hash == hash && entry.value.equals(value))) {
+            hits.incrementAndGet();
+            return entry.escaped;
+        }
+        misses.incrementAndGet();
+        String escaped = ServiceMessages.escapeValue(value);
+        entries.set(slot, new Entry(value, hash, escaped));
+        return escaped;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return percentage of values found in the cache
+     */
+    long getHitRate() {
+        long total = hits.get() + misses.get();
+        return total > 0 ? hits.get() * 100 / total : 0;
+    }
+
+    private static class Entry {
+
+        private final String value;
+        private final int hash;
+        private final String escaped;
+
+        private Entry(String value, int hash, String escaped) {
+            this.value = value;
+            this.hash = hash;
+            this.escaped = escaped;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.TestStep;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Renders service messages of data-driven examples on a fork-join pool.
+ * Examples are split into chunks and every chunk is rendered into its own message list,
+ * chunks are returned in the original example order so printing them one after another
+ * gives exactly the same output as sequential rendering.
+ */
+class ExampleRenderer {
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private static volatile ForkJoinPool pool;
+
+    private ExampleRenderer() {
+    }
+
+    static List<List<String>> renderInParallel(TeamCityStepListener listener, List<TestStep> examples, List<String> testNames,
+                                              OutputBudget.Tier tier) {
+        ForkJoinPool pool = getPool();
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, examples.size() / (pool.getParallelism() * 4));
+        return pool.invoke(new RenderTask(listener, examples, testNames, tier, 0, examples.size(), chunkSize));
+    }
+
+    private static ForkJoinPool getPool() {
+        ForkJoinPool result = pool;
+        if (result == null) {
+            synchronized (ExampleRenderer.class) {
+                result = pool;
+                if (result == null) {
+                    result = new ForkJoinPool();
+                    pool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static class RenderTask extends RecursiveTask<List<List<String>>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TeamCityStepListener listener;
+        private final List<TestStep> examples;
+        private final List<String> testNames;
+        private final OutputBudget.Tier tier;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        private RenderTask(TeamCityStepListener listener, List<TestStep> examples, List<String> testNames, OutputBudget.Tier tier,
+                           int from, int to, int chunkSize) {
+            this.listener = listener;
+            this.examples = examples;
+            this.testNames = testNames;
+            this.tier = tier;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected List<List<String>> compute() {
+            if (to - from <= chunkSize) {
+                List<String> messages = new ArrayList<>((to - from) * 3);
+                for (int i = from; i < to; i++) {
+                    listener.renderExample(examples.get(i), testNames.get(i), tier, messages);
+                }
+                List<List<String>> chunks = new ArrayList<>(1);
+                chunks.add(messages);
+                return chunks;
+            }
+            int middle = (from + to) >>> 1;
+            RenderTask left = new RenderTask(listener, examples, testNames, tier, from, middle, chunkSize);
+            RenderTask right = new RenderTask(listener, examples, testNames, tier, middle, to, chunkSize);
+            right.fork();
+            List<List<String>> chunks = left.compute();
+            chunks.addAll(right.join());
+            return chunks;
+        }
+    }
+}
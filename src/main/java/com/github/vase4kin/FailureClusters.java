@@ -0,0 +1,269 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Groups failures of the run by signature: exception class, normalized first line of the message
+ * and top stack frames. Memory is bounded by the Space-Saving algorithm: when all clusters are taken
+ * a new signature replaces the smallest cluster and inherits its count as the possible overestimation.
+ * Every signature with more than failures / capacity failures is guaranteed to be kept, and its count
+ * is overestimated by no more than the inherited count, which is reported with it. At the end of the run
+ * the ranked clusters are reported as a build message and published as a JSON artifact.
+ */
+class FailureClusters {
+
+    static final int MAX_EXAMPLES = 3;
+
+    private static final Pattern IDS = Pattern.compile("\\b(?=[0-9a-fA-F-]*[0-9])[0-9a-fA-F][0-9a-fA-F-]{7,}\\b");
+
+    private static FailureClusters instance;
+
+    private final int capacity;
+    private final int frames;
+    private final Map<String, Cluster> clusters = new HashMap<>();
+    private long failures;
+
+    /**
+     * @param capacity maximum number of tracked clusters
+     * @param frames   number of top stack frames in the signature
+     */
+    FailureClusters(int capacity, int frames) {
+        this.capacity = capacity;
+        this.frames = frames;
+    }
+
+    /**
+     * Run-wide clusters shared by all listener instances, every test JVM writes its own report
+     */
+    static synchronized FailureClusters getInstance(final ServiceMessageSink sink, int capacity, int frames,
+                                                    final int top, File report) {
+        if (instance == null) {
+            final File jvmReport = RunFinishedHooks.getJvmFile(report);
+            instance = new FailureClusters(capacity, frames);
+            final FailureClusters failureClusters = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    failureClusters.report(sink, top, jvmReport);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Records the failure of the test, the first step exception is used for the signature
+     */
+    void record(String testName, String failureMessage, List<OutcomeSnapshot.StepRecord> steps) {
+        Throwable throwable = null;
+        for (OutcomeSnapshot.StepRecord step : steps) {
+            if (step.getThrowable() != null) {
+                throwable = step.getThrowable();
+                break;
+            }
+        }
+        record(testName, signature(throwable, failureMessage));
+    }
+
+    String signature(Throwable throwable, String failureMessage) {
+        if (throwable == null) {
+            return normalize(failureMessage);
+        }
+        StringBuilder builder = new StringBuilder(throwable.getClass().getName());
+        String message = throwable.getMessage() != null ? throwable.getMessage() : failureMessage;
+        if (message != null) {
+            builder.append(": ").append(normalize(message));
+        }
+        StackTraceElement[] stackTrace = throwable.getStackTrace();
+        for (int i = 0; i < Math.min(frames, stackTrace.length); i++) {
+            builder.append("\n\tat ").append(stackTrace[i].getClassName()).append('.').append(stackTrace[i].getMethodName());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Strips ids, numbers, timestamps and quoted values from the first line of the message,
+     * apostrophes inside words such as "Can't" are kept like in step descriptions
+     */
+    static String normalize(String message) {
+        if (message == null) {
+            return "";
+        }
+        return StepProfiler.normalize(IDS.matcher(OutputBudget.getFirstLine(message)).replaceAll("#"));
+    }
+
+    synchronized void record(String testName, String signature) {
+        failures++;
+        Cluster cluster = clusters.get(signature);
+        if (cluster == null) {
+            if (clusters.size() < capacity) {
+                cluster = new Cluster(signature, 0);
+            } else {
+                Cluster smallest = Collections.min(clusters.values(), BY_COUNT);
+                clusters.remove(smallest.signature);
+                cluster = new Cluster(signature, smallest.count);
+            }
+            clusters.put(signature, cluster);
+        }
+        cluster.count++;
+        if (cluster.examples.size() < MAX_EXAMPLES && !cluster.examples.contains(testName)) {
+            cluster.examples.add(testName);
+        }
+    }
+
+    /**
+     * @return clusters ordered by count, largest first
+     */
+    synchronized List<Cluster> getClusters() {
+        List<Cluster> sorted = new ArrayList<>();
+        for (Cluster cluster : clusters.values()) {
+            sorted.add(cluster.copy());
+        }
+        Collections.sort(sorted, Collections.reverseOrder(BY_COUNT));
+        return sorted;
+    }
+
+    synchronized long getFailures() {
+        return failures;
+    }
+
+    void report(ServiceMessageSink sink, int top, File report) {
+        List<Cluster> ranked = getClusters();
+        if (ranked.isEmpty()) {
+            return;
+        }
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("text", describe(ranked, top));
+        sink.print(ServiceMessages.format("message", properties));
+        try {
+            writeJson(ranked, report);
+            sink.print(ServiceMessages.format("publishArtifacts", report.getAbsolutePath()));
+        } catch (IOException e) {
+            properties = new LinkedHashMap<>();
+            properties.put("text", "Can't write failure clusters " + report + ": " + e.getMessage());
+            properties.put("status", "WARNING");
+            sink.print(ServiceMessages.format("message", properties));
+        }
+    }
+
+    String describe(List<Cluster> ranked, int top) {
+        StringBuilder builder = new StringBuilder()
+                .append(getFailures()).append(" failures in ").append(ranked.size()).append(" clusters");
+        for (int i = 0; i < Math.min(top, ranked.size()); i++) {
+            Cluster cluster = ranked.get(i);
+            builder.append("\n").append(i + 1).append(". ").append(cluster.count);
+            if (cluster.error > 0) {
+                builder.append(" (up to ").append(cluster.error).append(" overcounted)");
+            }
+            builder.append(" x ")
+                    .append(OutputBudget.getFirstLine(cluster.signature))
+                    .append(" (e.g. ");
+            for (int j = 0; j < cluster.examples.size(); j++) {
+                builder.append(j > 0 ? ", " : "").append(cluster.examples.get(j));
+            }
+            builder.append(")");
+        }
+        return builder.toString();
+    }
+
+    void writeJson(List<Cluster> ranked, File report) throws IOException {
+        File parent = report.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create directory " + parent);
+        }
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report), Charset.forName("UTF-8")))) {
+            writer.println("{\"failures\":" + getFailures() + ",\"clusters\":[");
+            for (int i = 0; i < ranked.size(); i++) {
+                Cluster cluster = ranked.get(i);
+                StringBuilder examples = new StringBuilder();
+                for (String example : cluster.examples) {
+                    examples.append(examples.length() > 0 ? "," : "").append(quote(example));
+                }
+                writer.println(String.format("{\"signature\":%s,\"count\":%d,\"maxOvercount\":%d,\"examples\":[%s]}%s",
+                        quote(cluster.signature), cluster.count, cluster.error, examples, i < ranked.size() - 1 ? "," : ""));
+            }
+            writer.println("]}");
+        }
+    }
+
+    static String quote(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private static final Comparator<Cluster> BY_COUNT = new Comparator<Cluster>() {
+        @Override
+        public int compare(Cluster first, Cluster second) {
+            return first.count < second.count ? -1 : first.count > second.count ? 1 : second.signature.compareTo(first.signature);
+        }
+    };
+
+    static class Cluster {
+
+        private final String signature;
+        private final long error;
+        private final List<String> examples = new ArrayList<>(MAX_EXAMPLES);
+        private long count;
+
+        private Cluster(String signature, long error) {
+            this.signature = signature;
+            this.error = error;
+            this.count = error;
+        }
+
+        private Cluster copy() {
+            Cluster copy = new Cluster(signature, error);
+            copy.count = count;
+            copy.examples.addAll(examples);
+            return copy;
+        }
+
+        String getSignature() {
+            return signature;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return maximum number of failures counted to the cluster which belonged to evicted ones
+         */
+        long getError() {
+            return error;
+        }
+
+        List<String> getExamples() {
+            return examples;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.vase4kin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker threads formatting and printing service messages off the test threads.
+ * Every listener gets its own {@link Flow}, tasks of a flow run one at a time in submission order
+ * so messages of a flow keep their order, while different flows are formatted in parallel.
+ */
+class FormatterPool {
+
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+
+    private static FormatterPool instance;
+
+    private final ExecutorService executor;
+    private final AtomicLong pending = new AtomicLong();
+    private final ThreadLocal<Flow> currentFlow = new ThreadLocal<>();
+
+    FormatterPool(int threads) {
+        final AtomicInteger number = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "teamcity-steplistener-formatter-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run-wide pool shared by all listener instances, drained when the run is finished.
+     * Should be created before other run-wide components, so it's drained before they report and close.
+     */
+    static synchronized FormatterPool getInstance(int threads) {
+        if (instance == null) {
+            instance = new FormatterPool(threads);
+            final FormatterPool pool = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    pool.drain(DRAIN_TIMEOUT_MILLIS);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * @param sink   sink for warnings about failed tasks of the flow
+     * @param flowId TeamCity flow id of the warnings, may be null
+     */
+    Flow newFlow(ServiceMessageSink sink, String flowId) {
+        return new Flow(sink, flowId);
+    }
+
+    /**
+     * Waits until tasks of all flows are done
+     *
+     * @return true if they were done before timeout
+     */
+    boolean drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ordered sequence of tasks of a single listener
+     */
+    class Flow implements Runnable {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong flowPending = new AtomicLong();
+        private final ServiceMessageSink sink;
+        private final String flowId;
+
+        private Flow(ServiceMessageSink sink, String flowId) {
+            this.sink = sink;
+            this.flowId = flowId;
+        }
+
+        void execute(Runnable task) {
+            pending.incrementAndGet();
+            flowPending.incrementAndGet();
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * @return true if called from a task of this flow, which must not submit its messages again
+         */
+        boolean isCurrent() {
+            return currentFlow.get() == this;
+        }
+
+        /**
+         * Waits until all submitted tasks of this flow are done
+         *
+         * @return true if they were done before timeout
+         */
+        boolean await(long timeoutMillis) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (flowPending.get() > 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            currentFlow.set(this);
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // later tasks of the flow still run, so only the failed one is lost
+                        printWarning("Can't format service messages: " + e);
+                    } finally {
+                        flowPending.decrementAndGet();
+                        pending.decrementAndGet();
+                    }
+                }
+            } finally {
+                currentFlow.remove();
+                scheduled.set(false);
+            }
+            // a task added after the queue was found empty but before the flag was reset
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        private void printWarning(String text) {
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("text", text);
+            properties.put("status", "WARNING");
+            if (flowId != null) {
+                properties.put("flowId", flowId);
+            }
+            sink.print(ServiceMessages.format("message", properties));
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.github.vase4kin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Failure signatures of previous builds, so failures which repeat unchanged on every build
+ * are reported briefly. The index file is an open-addressing table of primitive longs memory-mapped
+ * at startup and looked up without locking: a header of 4 longs (magic, slot count, used slots, reserved)
+ * followed by slots of 3 longs (test name hash, failure signature, first seen time).
+ * A removed failure keeps its name hash with an empty signature, so probing goes on past it.
+ * Failures of the run are applied to the file when the run is finished, under a file lock
+ * since forked test JVMs share the index.
+ */
+class KnownFailureIndex {
+
+    private static final long MAGIC = 0x54434b4e4f574e31L;
+    private static final int HEADER_LONGS = 4;
+    private static final int SLOT_LONGS = 3;
+    private static final int MIN_SLOTS = 1024;
+    private static final long EMPTY = 0;
+    private static final long PASSED = -1;
+
+    private static KnownFailureIndex instance;
+
+    private final File file;
+    private final int frames;
+    private final LongBuffer known;
+    private final Map<Long, Long> changes = new ConcurrentHashMap<>();
+
+    /**
+     * @param frames number of top stack frames in a failure signature
+     */
+    KnownFailureIndex(File file, int frames) {
+        this.file = file;
+        this.frames = frames;
+        this.known = map(file);
+    }
+
+    /**
+     * Run-wide index shared by all listener instances, updated when the run is finished
+     */
+    static synchronized KnownFailureIndex getInstance(final ServiceMessageSink sink, final File file, int frames) {
+        if (instance == null) {
+            instance = new KnownFailureIndex(file, frames);
+            final KnownFailureIndex index = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        index.update();
+                    } catch (IOException e) {
+                        Map<String, String> properties = new LinkedHashMap<>();
+                        properties.put("text", "Can't update known failures " + file + ": " + e.getMessage());
+                        properties.put("status", "WARNING");
+                        sink.print(ServiceMessages.format("message", properties));
+                    }
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Exception class and top frames of the first failed step without line numbers, so the signature
+     * survives unrelated changes of the code; the normalized failure message if there is no exception
+     */
+    long signature(OutcomeSnapshot result) {
+        for (OutcomeSnapshot.StepRecord step : result.getSteps()) {
+            Throwable throwable = step.getThrowable();
+            if (throwable != null) {
+                StringBuilder builder = new StringBuilder(throwable.getClass().getName());
+                StackTraceElement[] stackTrace = throwable.getStackTrace();
+                for (int i = 0; i < Math.min(frames, stackTrace.length); i++) {
+                    builder.append('\n').append(stackTrace[i].getClassName()).append('.').append(stackTrace[i].getMethodName());
+                }
+                return DurationIndex.hash(builder.toString());
+            }
+        }
+        return DurationIndex.hash(StepProfiler.normalize(OutputBudget.getFirstLine(result.getFailureMessage())));
+    }
+
+    /**
+     * @return time the failure was first seen or -1 if the test didn't fail with this signature before
+     */
+    long getFirstSeen(String testName, long signature) {
+        if (known == null) {
+            return -1;
+        }
+        int slot = find(known, DurationIndex.hash(testName));
+        if (slot < 0 || known.get(slot + 1) != signature) {
+            return -1;
+        }
+        return known.get(slot + 2);
+    }
+
+    void recordFailure(String testName, long signature) {
+        changes.put(DurationIndex.hash(testName), signature);
+    }
+
+    /**
+     * Removes the failure of the test from the index, only known failures are remembered
+     */
+    void recordPassed(String testName) {
+        long nameHash = DurationIndex.hash(testName);
+        if (known != null && find(known, nameHash) >= 0) {
+            changes.put(nameHash, PASSED);
+        }
+    }
+
+    /**
+     * Applies failures of the run in place. When the table is getting full it's rebuilt into a new file
+     * which replaces the index, so JVMs which have the old file mapped keep reading it safely.
+     */
+    synchronized void update() throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent);
+        }
+        try (RandomAccessFile lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+             FileLock ignored = lockFile.getChannel().lock()) {
+            MappedByteBuffer mapped = null;
+            try (RandomAccessFile indexFile = new RandomAccessFile(file, "rw")) {
+                FileChannel channel = indexFile.getChannel();
+                if (isValid(channel)) {
+                    mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                }
+            }
+            LongBuffer table = mapped != null ? longs(mapped) : null;
+            if (table == null || (table.get(2) + changes.size()) * 4 > table.get(1) * 3) {
+                int slots = Math.max(MIN_SLOTS, Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE / 8,
+                        (count(table) + changes.size()) * 2L)) << 1);
+                mapped = rebuild(table, slots);
+                table = longs(mapped);
+            }
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Long, Long> change : changes.entrySet()) {
+                apply(table, change.getKey(), change.getValue(), now);
+            }
+            changes.clear();
+            mapped.force();
+        }
+    }
+
+    private void apply(LongBuffer table, long nameHash, long signature, long now) {
+        int slot = find(table, nameHash);
+        if (slot < 0) {
+            if (signature == PASSED) {
+                return;
+            }
+            slot = -slot - 1;
+            table.put(slot, nameHash);
+            table.put(2, table.get(2) + 1);
+        } else if (table.get(slot + 1) == signature) {
+            return;
+        }
+        table.put(slot + 1, signature == PASSED ? EMPTY : signature);
+        table.put(slot + 2, now);
+    }
+
+    /**
+     * @return slot of the name, or -(empty slot) - 1 if it's not in the table
+     */
+    private static int find(LongBuffer table, long nameHash) {
+        int slots = (int) table.get(1);
+        int mask = slots - 1;
+        int slot = (int) (nameHash ^ (nameHash >>> 32)) & mask;
+        for (int probe = 0; probe < slots; probe++, slot = (slot + 1) & mask) {
+            int index = HEADER_LONGS + slot * SLOT_LONGS;
+            long current = table.get(index);
+            if (current == nameHash) {
+                return index;
+            }
+            if (current == EMPTY) {
+                return -index - 1;
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private static int count(LongBuffer table) {
+        if (table == null) {
+            return 0;
+        }
+        int count = 0;
+        int slots = (int) table.get(1);
+        for (int slot = 0; slot < slots; slot++) {
+            if (table.get(HEADER_LONGS + slot * SLOT_LONGS + 1) != EMPTY) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies live failures into a new table file, dropping removed ones, and moves it over the index
+     */
+    private MappedByteBuffer rebuild(LongBuffer old, int slots) throws IOException {
+        File rebuilt = new File(file.getPath() + ".tmp");
+        MappedByteBuffer mapped;
+        try (RandomAccessFile indexFile = new RandomAccessFile(rebuilt, "rw")) {
+            FileChannel channel = indexFile.getChannel();
+            channel.truncate(0);
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, (HEADER_LONGS + (long) slots * SLOT_LONGS) * 8);
+        }
+        LongBuffer table = longs(mapped);
+        table.put(0, MAGIC);
+        table.put(1, slots);
+        if (old != null) {
+            int oldSlots = (int) old.get(1);
+            for (int slot = 0; slot < oldSlots; slot++) {
+                int index = HEADER_LONGS + slot * SLOT_LONGS;
+                if (old.get(index + 1) != EMPTY) {
+                    int newIndex = -find(table, old.get(index)) - 1;
+                    table.put(newIndex, old.get(index));
+                    table.put(newIndex + 1, old.get(index + 1));
+                    table.put(newIndex + 2, old.get(index + 2));
+                    table.put(2, table.get(2) + 1);
+                }
+            }
+        }
+        mapped.force();
+        Files.move(rebuilt.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return mapped;
+    }
+
+    /**
+     * @return read-only table of the file or null if there's no valid index yet
+     */
+    private static LongBuffer map(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile indexFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = indexFile.getChannel();
+            // the mapping stays valid after the channel is closed
+            return isValid(channel) ? map(channel, FileChannel.MapMode.READ_ONLY) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static LongBuffer map(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+        return longs(channel.map(mode, 0, channel.size()));
+    }
+
+    private static LongBuffer longs(MappedByteBuffer mapped) {
+        return mapped.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    private static boolean isValid(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_LONGS * 8) {
+            return false;
+        }
+        LongBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LONGS * 8)
+                .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        long slots = header.get(1);
+        return header.get(0) == MAGIC && slots > 0 && Long.bitCount(slots) == 1
+                && channel.size() == (HEADER_LONGS + slots * SLOT_LONGS) * 8;
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.vase4kin;
+
+/**
+ * Recording of the listener activity. Backed by JDK Flight Recorder events when the listener
+ * is built and run on JDK 11+, otherwise every method is a no-op.
+ * Begin methods return null when the event is disabled in the recording settings.
+ */
+abstract class ListenerEvents {
+
+    private static final String FLIGHT_RECORDER_EVENTS = "com.github.vase4kin.FlightRecorderEvents";
+
+    static final ListenerEvents EVENTS = load();
+
+    abstract Object beginCallback(String callback);
+
+    abstract void endCallback(Object event, String testName);
+
+    abstract Object beginMessage();
+
+    abstract void endMessage(Object event, String messageName, String message);
+
+    abstract void endMessage(Object event, String messageName, long size);
+
+    abstract Object beginSinkWrite();
+
+    abstract void endSinkWrite(Object event, String message);
+
+    abstract void endSinkWrite(Object event, long size);
+
+    /**
+     * Registering event classes initializes Flight Recorder, which costs hundreds of milliseconds
+     * in every forked JVM, so by default events are registered only if Flight Recorder is running already
+     */
+    static ListenerEvents load() {
+        String enabled = System.getProperty("teamcity.steplistener.jfr");
+        if (enabled != null && !Boolean.parseBoolean(enabled)) {
+            return new NoopEvents();
+        }
+        try {
+            Class<?> flightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+            if (enabled == null && !(Boolean) flightRecorder.getMethod("isInitialized").invoke(null)) {
+                return new NoopEvents();
+            }
+            return (ListenerEvents) Class.forName(FLIGHT_RECORDER_EVENTS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new NoopEvents();
+        }
+    }
+
+    /**
+     * @return size of the message in UTF-8, the encoding of the build log, counted without encoding it
+     */
+    static int getEncodedSize(String message) {
+        int size = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    private static class NoopEvents extends ListenerEvents {
+
+        @Override
+        Object beginCallback(String callback) {
+            return null;
+        }
+
+        @Override
+        void endCallback(Object event, String testName) {
+        }
+
+        @Override
+        Object beginMessage() {
+            return null;
+        }
+
+        @Override
+        void endMessage(Object event, String messageName, String message) {
+        }
+
+        @Override
+        void endMessage(Object event, String messageName, long size) {
+        }
+
+        @Override
+        Object beginSinkWrite() {
+            return null;
+        }
+
+        @Override
+        void endSinkWrite(Object event, String message) {
+        }
+
+        @Override
+        void endSinkWrite(Object event, long size) {
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.vase4kin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live run metrics served in Prometheus text format on localhost: finished tests by status,
+ * test throughput, open suites, test duration histogram, printed messages and time spent
+ * in the listener. Hot paths only increment atomic counters, the text is rendered per scrape.
+ */
+class ListenerMetrics {
+
+    static final String PATH = "/metrics";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PREFIX = "teamcity_steplistener_";
+    private static final double[] DURATION_BUCKETS = {0.01, 0.1, 1, 10, 60, 300};
+
+    private static ListenerMetrics instance;
+
+    private final long startTime = System.nanoTime();
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong openSuites = new AtomicLong();
+    private final AtomicLongArray durationBuckets = new AtomicLongArray(DURATION_BUCKETS.length + 1);
+    private final AtomicLong durationMillis = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong messageBytes = new AtomicLong();
+    private final AtomicLong listenerNanos = new AtomicLong();
+    private HttpServer server;
+
+    ListenerMetrics() {
+    }
+
+    /**
+     * Run-wide metrics shared by all listener instances, the endpoint is announced with a build log message
+     *
+     * @param port port on localhost, 0 for any free port
+     */
+    static synchronized ListenerMetrics getInstance(ServiceMessageSink sink, int port) {
+        if (instance == null) {
+            instance = new ListenerMetrics();
+            try {
+                int boundPort = instance.start(port);
+                Map<String, String> properties = new LinkedHashMap<>();
+                properties.put("text", "Listener metrics are served at http://127.0.0.1:" + boundPort + PATH);
+                sink.print(ServiceMessages.format("message", properties));
+            } catch (IOException e) {
+                Map<String, String> properties = new LinkedHashMap<>();
+                properties.put("text", "Listener metrics endpoint can't be started on port " + port + ": " + e);
+                properties.put("status", "WARNING");
+                sink.print(ServiceMessages.format("message", properties));
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return bound port
+     */
+    int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes(UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        // the dispatcher thread inherits the daemon flag of the thread starting the server,
+        // so the endpoint never keeps the test JVM running
+        Thread starter = new Thread("teamcity-steplistener-metrics") {
+            @Override
+            public void run() {
+                server.start();
+            }
+        };
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    void recordTest(boolean testFailed, boolean testIgnored, long duration) {
+        if (testFailed) {
+            failed.incrementAndGet();
+        } else if (testIgnored) {
+            ignored.incrementAndGet();
+        } else {
+            passed.incrementAndGet();
+        }
+        int bucket = 0;
+        while (bucket < DURATION_BUCKETS.length && duration > DURATION_BUCKETS[bucket] * 1000) {
+            bucket++;
+        }
+        durationBuckets.incrementAndGet(bucket);
+        durationMillis.addAndGet(duration);
+    }
+
+    void suiteStarted() {
+        openSuites.incrementAndGet();
+    }
+
+    void suiteFinished() {
+        openSuites.decrementAndGet();
+    }
+
+    void recordMessage(long bytes) {
+        messages.incrementAndGet();
+        messageBytes.addAndGet(bytes);
+    }
+
+    void recordListenerTime(long nanos) {
+        listenerNanos.addAndGet(nanos);
+    }
+
+    String render() {
+        StringBuilder builder = new StringBuilder(2048);
+        long finished = passed.get() + failed.get() + ignored.get();
+        double elapsedSeconds = Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+
+        header(builder, "tests_total", "counter", "Finished tests by status");
+        sample(builder, "tests_total{status=\"passed\"}", passed.get());
+        sample(builder, "tests_total{status=\"failed\"}", failed.get());
+        sample(builder, "tests_total{status=\"ignored\"}", ignored.get());
+        header(builder, "tests_per_second", "gauge", "Average finished tests per second since the listener started");
+        sample(builder, "tests_per_second", finished / elapsedSeconds);
+        header(builder, "open_suites", "gauge", "Suites started and not finished yet");
+        sample(builder, "open_suites", openSuites.get());
+
+        header(builder, "test_duration_seconds", "histogram", "Test durations");
+        long cumulative = 0;
+        for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+            cumulative += durationBuckets.get(i);
+            sample(builder, "test_duration_seconds_bucket{le=\"" + DURATION_BUCKETS[i] + "\"}", cumulative);
+        }
+        cumulative += durationBuckets.get(DURATION_BUCKETS.length);
+        sample(builder, "test_duration_seconds_bucket{le=\"+Inf\"}", cumulative);
+        sample(builder, "test_duration_seconds_sum", durationMillis.get() / 1000.0);
+        sample(builder, "test_duration_seconds_count", cumulative);
+
+        header(builder, "messages_total", "counter", "Printed service messages");
+        sample(builder, "messages_total", messages.get());
+        header(builder, "message_bytes_total", "counter", "UTF-8 bytes of printed service messages");
+        sample(builder, "message_bytes_total", messageBytes.get());
+        header(builder, "listener_seconds_total", "counter", "Time test threads spent in listener callbacks");
+        sample(builder, "listener_seconds_total", listenerNanos.get() / 1e9);
+        return builder.toString();
+    }
+
+    private static void header(StringBuilder builder, String name, String type, String help) {
+        builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, long value) {
+        builder.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, double value) {
+        builder.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.vase4kin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * In-process stand-in for the results collector: accepts {@link CollectorSink} connections,
+ * decodes their frames and keeps the received service messages. Used by tests and to try
+ * the collector protocol offline.
+ * Usage: LocalCollector [port], received messages are printed to stdout
+ */
+public class LocalCollector implements Closeable {
+
+    private final ServerSocketChannel server;
+    private final List<String> messages = new ArrayList<>();
+    private final boolean print;
+    private volatile boolean closed;
+
+    public LocalCollector(int port) throws IOException {
+        this(port, false);
+    }
+
+    private LocalCollector(int port, boolean print) throws IOException {
+        this.print = print;
+        this.server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+        Thread acceptor = new Thread("teamcity-steplistener-local-collector") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LocalCollector collector = new LocalCollector(args.length > 0 ? Integer.parseInt(args[0]) : 0, true);
+        System.err.println("Collecting on 127.0.0.1:" + collector.getPort());
+        Thread.currentThread().join();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return copy of the messages received so far in order of arrival
+     */
+    public List<String> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    /**
+     * Waits until the given number of messages is received
+     *
+     * @return true if the messages were received before timeout
+     */
+    public boolean awaitMessages(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (messages) {
+            while (messages.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                messages.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final SocketChannel connection = server.accept();
+                Thread reader = new Thread("teamcity-steplistener-local-collector-connection") {
+                    @Override
+                    public void run() {
+                        read(connection);
+                    }
+                };
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(SocketChannel connection) {
+        try (DataInputStream in = new DataInputStream(Channels.newInputStream(connection))) {
+            while (!closed) {
+                String batch = readFrame(in);
+                if (batch == null) {
+                    return;
+                }
+                for (String message : batch.split("\n")) {
+                    received(message);
+                }
+            }
+        } catch (IOException | DataFormatException e) {
+            // the sender reconnects and resends spilled frames
+        }
+    }
+
+    /**
+     * @return frame payload or null at the end of the stream
+     */
+    static String readFrame(DataInputStream in) throws IOException, DataFormatException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int flags = in.readByte();
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+        if ((flags & CollectorSink.FLAG_DEFLATED) != 0) {
+            payload = inflate(payload);
+        }
+        return new String(payload, CollectorSink.UTF_8);
+    }
+
+    private static byte[] inflate(byte[] payload) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated frame");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void received(String message) {
+        if (print) {
+            System.out.println(message);
+        }
+        synchronized (messages) {
+            messages.add(message);
+            messages.notifyAll();
+        }
+    }
+}
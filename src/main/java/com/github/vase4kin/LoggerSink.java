@@ -0,0 +1,20 @@
+package com.github.vase4kin;
+
+import org.slf4j.Logger;
+
+/**
+ * Prints service messages to the build log through slf4j logger
+ */
+public class LoggerSink implements ServiceMessageSink {
+
+    private final Logger logger;
+
+    public LoggerSink(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void print(String message) {
+        logger.info(message);
+    }
+}
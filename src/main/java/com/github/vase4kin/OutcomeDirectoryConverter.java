@@ -0,0 +1,230 @@
+package com.github.vase4kin;
+
+import com.google.common.base.Optional;
+import net.thucydides.core.model.DataTable;
+import net.thucydides.core.model.DataTableRow;
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import net.thucydides.core.reports.xml.XMLTestOutcomeReporter;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Converts a directory of stored Thucydides outcome files into TeamCity service messages.
+ * Outcome files are parsed and formatted in parallel on a fork-join pool, one window of files at a time,
+ * so only a window worth of outcomes is kept in memory. Messages are written in file name order,
+ * consecutive outcomes of the same story are reported in one suite, also across windows.
+ */
+public class OutcomeDirectoryConverter {
+
+    private static final int DEFAULT_WINDOW_SIZE = 512;
+
+    private static final String XML_EXTENSION = ".xml";
+
+    private static final ThreadLocal<XMLTestOutcomeReporter> XML_REPORTER = new ThreadLocal<XMLTestOutcomeReporter>() {
+        @Override
+        protected XMLTestOutcomeReporter initialValue() {
+            return new XMLTestOutcomeReporter();
+        }
+    };
+
+    private final ForkJoinPool pool;
+    private final int windowSize;
+
+    public OutcomeDirectoryConverter(int parallelism, int windowSize) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.windowSize = windowSize;
+    }
+
+    public OutcomeDirectoryConverter() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Converts every outcome file in the directory and writes resulting service messages, one per line
+     *
+     * @return number of converted outcomes
+     */
+    public int convert(File directory, Writer writer) throws IOException {
+        List<File> files = listOutcomeFiles(directory);
+        final PrintWriter printWriter = new PrintWriter(writer);
+        TeamCityStepListener suiteListener = new TeamCityStepListener(new ServiceMessageSink() {
+            @Override
+            public void print(String message) {
+                printWriter.println(message);
+            }
+        }, true);
+        int converted = 0;
+        Story openStory = null;
+        try {
+            for (int from = 0; from < files.size(); from += windowSize) {
+                List<File> window = files.subList(from, Math.min(from + windowSize, files.size()));
+                for (ConvertedOutcome outcome : convertWindow(window)) {
+                    if (!isSameStory(openStory, outcome.story)) {
+                        if (openStory != null) {
+                            suiteListener.testSuiteFinished();
+                        }
+                        openStory = outcome.story;
+                        if (openStory != null) {
+                            suiteListener.testSuiteStarted(openStory);
+                        }
+                    }
+                    for (String message : outcome.messages) {
+                        printWriter.println(message);
+                    }
+                    converted++;
+                }
+            }
+            if (openStory != null) {
+                suiteListener.testSuiteFinished();
+            }
+        } finally {
+            printWriter.flush();
+        }
+        if (printWriter.checkError()) {
+            throw new IOException("Can't write service messages");
+        }
+        return converted;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static boolean isSameStory(Story first, Story second) {
+        if (first == null || second == null) {
+            return first == second;
+        }
+        return first.getName().equals(second.getName());
+    }
+
+    /**
+     * @return converted outcomes in file order, unreadable files are skipped
+     */
+    private List<ConvertedOutcome> convertWindow(List<File> window) throws IOException {
+        List<Callable<ConvertedOutcome>> tasks = new ArrayList<>(window.size());
+        for (final File file : window) {
+            tasks.add(new Callable<ConvertedOutcome>() {
+                @Override
+                public ConvertedOutcome call() throws Exception {
+                    return convertFile(file);
+                }
+            });
+        }
+        List<ConvertedOutcome> outcomes = new ArrayList<>(window.size());
+        for (Future<ConvertedOutcome> future : pool.invokeAll(tasks)) {
+            ConvertedOutcome outcome = getResult(future);
+            if (outcome != null) {
+                outcomes.add(outcome);
+            }
+        }
+        return outcomes;
+    }
+
+    private ConvertedOutcome getResult(Future<ConvertedOutcome> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Conversion was interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Can't convert outcome", e.getCause());
+        }
+    }
+
+    private ConvertedOutcome convertFile(File file) throws IOException {
+        TestOutcome outcome = loadOutcome(file);
+        if (outcome == null) {
+            return null;
+        }
+        final List<String> messages = new ArrayList<>();
+        TeamCityStepListener listener = new TeamCityStepListener(new ServiceMessageSink() {
+            @Override
+            public void print(String message) {
+                messages.add(message);
+            }
+        }, true);
+        if (outcome.isDataDriven()) {
+            replayExamples(listener, outcome.getDataTable());
+        }
+        listener.testFinished(outcome);
+        return new ConvertedOutcome(outcome.getUserStory(), messages);
+    }
+
+    private void replayExamples(TeamCityStepListener listener, DataTable dataTable) {
+        if (dataTable == null) {
+            return;
+        }
+        List<String> headers = dataTable.getHeaders();
+        for (DataTableRow row : dataTable.getRows()) {
+            Map<String, String> data = new LinkedHashMap<>();
+            int column = 0;
+            for (Object value : row.getCellValues()) {
+                if (column < headers.size()) {
+                    data.put(headers.get(column), String.valueOf(value));
+                }
+                column++;
+            }
+            listener.exampleStarted(data);
+        }
+    }
+
+    protected TestOutcome loadOutcome(File file) throws IOException {
+        Optional<TestOutcome> outcome = XML_REPORTER.get().loadReportFrom(file);
+        return outcome.isPresent() ? outcome.get() : null;
+    }
+
+    private List<File> listOutcomeFiles(File directory) throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(XML_EXTENSION);
+            }
+        });
+        if (files == null) {
+            throw new FileNotFoundException("Outcome directory is not found: " + directory);
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static class ConvertedOutcome {
+
+        private final Story story;
+        private final List<String> messages;
+
+        private ConvertedOutcome(Story story, List<String> messages) {
+            this.story = story;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * Usage: OutcomeDirectoryConverter &lt;outcome directory&gt; [output file]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: OutcomeDirectoryConverter <outcome directory> [output file]");
+            System.exit(2);
+        }
+        OutputStream output = args.length > 1 ? new FileOutputStream(args[1]) : System.out;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")), 1 << 16);
+        OutcomeDirectoryConverter converter = new OutcomeDirectoryConverter();
+        try {
+            long started = System.currentTimeMillis();
+            int converted = converter.convert(new File(args[0]), writer);
+            System.err.println(String.format("Converted %d outcomes in %d ms", converted, System.currentTimeMillis() - started));
+        } finally {
+            converter.shutdown();
+            if (output != System.out) {
+                writer.close();
+            }
+        }
+    }
+}
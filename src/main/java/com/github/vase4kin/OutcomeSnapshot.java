@@ -0,0 +1,175 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.TestOutcome;
+import net.thucydides.core.model.TestStep;
+import net.thucydides.core.screenshots.ScreenshotAndHtmlSource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable part of a test outcome needed to report it. Extracted on the test thread without
+ * rendering anything, so the outcome graph can be collected while the messages are formatted later.
+ * Steps are flattened in rendering order, children are kept only for failed groups since
+ * only they are rendered.
+ */
+final class OutcomeSnapshot {
+
+    private final String title;
+    private final long duration;
+    private final boolean failed;
+    private final boolean ignored;
+    private final String failureMessage;
+    private final List<StepRecord> steps;
+    private final List<File> screenshots;
+
+    private OutcomeSnapshot(String title, long duration, boolean failed, boolean ignored, String failureMessage,
+                            List<StepRecord> steps, List<File> screenshots) {
+        this.title = title;
+        this.duration = duration;
+        this.failed = failed;
+        this.ignored = ignored;
+        this.failureMessage = failureMessage;
+        this.steps = steps;
+        this.screenshots = screenshots;
+    }
+
+    /**
+     * @param title          test name reported to TeamCity
+     * @param failureMessage failure cause message, empty if there is none
+     */
+    static OutcomeSnapshot of(TestOutcome result, String title, String failureMessage, boolean collectScreenshots) {
+        boolean failed = result.isFailure() || result.isError();
+        List<StepRecord> steps = new ArrayList<>();
+        flatten(result.getTestSteps(), 0, steps);
+        List<File> screenshots = Collections.emptyList();
+        if (collectScreenshots) {
+            screenshots = new ArrayList<>();
+            collectScreenshots(result.getTestSteps(), screenshots);
+        }
+        return new OutcomeSnapshot(title, result.getDuration(), failed, !failed && (result.isSkipped() || result.isPending()),
+                failureMessage, steps, screenshots);
+    }
+
+    /**
+     * Flattens steps with the children of failed groups in rendering order
+     */
+    static void flatten(List<TestStep> testSteps, int depth, List<StepRecord> records) {
+        for (TestStep testStep : testSteps) {
+            boolean failed = testStep.isFailure() || testStep.isError();
+            boolean group = failed && testStep.isAGroup();
+            Throwable throwable = failed && !group && testStep.getException() != null
+                    ? testStep.getException().toException()
+                    : null;
+            records.add(new StepRecord(depth, String.valueOf(testStep.getDescription()), testStep.getDurationInSeconds(),
+                    testStep.getResult().toString(), failed, group, throwable));
+            if (group) {
+                flatten(testStep.getChildren(), depth + 1, records);
+            }
+        }
+    }
+
+    static void collectScreenshots(List<TestStep> testSteps, List<File> screenshots) {
+        for (TestStep testStep : testSteps) {
+            for (ScreenshotAndHtmlSource screenshot : testStep.getScreenshots()) {
+                if (screenshot.getScreenshotFile() != null) {
+                    screenshots.add(screenshot.getScreenshotFile());
+                }
+            }
+            collectScreenshots(testStep.getChildren(), screenshots);
+        }
+    }
+
+    /**
+     * @return copy of the snapshot failed with the message, e.g. for a test whose step hung
+     */
+    OutcomeSnapshot failedWith(String message) {
+        return new OutcomeSnapshot(title, duration, true, false, message, steps, screenshots);
+    }
+
+    String getTitle() {
+        return title;
+    }
+
+    long getDuration() {
+        return duration;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    boolean isIgnored() {
+        return ignored;
+    }
+
+    String getFailureMessage() {
+        return failureMessage;
+    }
+
+    List<StepRecord> getSteps() {
+        return steps;
+    }
+
+    List<File> getScreenshots() {
+        return screenshots;
+    }
+
+    /**
+     * Single step of a flattened step tree
+     */
+    static final class StepRecord {
+
+        private final int depth;
+        private final String description;
+        private final double durationInSeconds;
+        private final String result;
+        private final boolean failed;
+        private final boolean group;
+        private final Throwable throwable;
+
+        StepRecord(int depth, String description, double durationInSeconds, String result, boolean failed, boolean group,
+                   Throwable throwable) {
+            this.depth = depth;
+            this.description = description;
+            this.durationInSeconds = durationInSeconds;
+            this.result = result;
+            this.failed = failed;
+            this.group = group;
+            this.throwable = throwable;
+        }
+
+        int getDepth() {
+            return depth;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        double getDurationInSeconds() {
+            return durationInSeconds;
+        }
+
+        String getResult() {
+            return result;
+        }
+
+        boolean isFailed() {
+            return failed;
+        }
+
+        boolean isGroup() {
+            return group;
+        }
+
+        /**
+         * @return exception of a failed step or null
+         */
+        Throwable getThrowable() {
+            return throwable;
+        }
+    }
+}
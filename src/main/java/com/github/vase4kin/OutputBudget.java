@@ -0,0 +1,202 @@
+package com.github.vase4kin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run-wide budget of emitted service message bytes.
+ * Failure details get shorter tier by tier as the run emits more output or too many tests fail:
+ * full details, stack traces without framework frames, first line of the failure message only
+ * and at last nothing but the failed status. Tiers never go back during the run.
+ */
+class OutputBudget {
+
+    enum Tier {
+        FULL("full details"),
+        FILTERED_TRACES("filtered stack traces"),
+        FIRST_LINE("first line of failure messages"),
+        COUNTS("failure counts only");
+
+        private final String description;
+
+        Tier(String description) {
+            this.description = description;
+        }
+    }
+
+    private static final String[] FRAMEWORK_PACKAGES = {
+            "sun.reflect.", "jdk.internal.reflect.", "java.lang.reflect.", "java.lang.Thread.",
+            "org.junit.", "junit.", "org.jbehave.", "net.thucydides.", "net.sf.cglib.",
+            "org.apache.maven.surefire.", "com.intellij."
+    };
+
+    private static OutputBudget instance;
+
+    private final long budgetBytes;
+    private final int failureRatePercent;
+    private final int minTests;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong tests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong reducedFailures = new AtomicLong();
+    private final AtomicInteger tier = new AtomicInteger();
+
+    /**
+     * @param budgetBytes        emitted bytes after which only failure counts are reported, 0 to not limit bytes
+     * @param failureRatePercent failed tests percentage after which only first lines of failure messages are reported,
+     *                           0 to not watch the failure rate
+     * @param minTests           number of finished tests before the failure rate is watched
+     */
+    OutputBudget(long budgetBytes, int failureRatePercent, int minTests) {
+        this.budgetBytes = budgetBytes;
+        this.failureRatePercent = failureRatePercent;
+        this.minTests = minTests;
+    }
+
+    /**
+     * Run-wide budget shared by all listener instances
+     */
+    static synchronized OutputBudget getInstance(final ServiceMessageSink sink, long budgetBytes, int failureRatePercent, int minTests) {
+        if (instance == null) {
+            instance = new OutputBudget(budgetBytes, failureRatePercent, minTests);
+            final OutputBudget budget = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    budget.report(sink);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * @param count UTF-8 encoded size of printed messages
+     */
+    void recordBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    void recordTests(int count, int failed) {
+        tests.addAndGet(count);
+        if (failed > 0) {
+            failures.addAndGet(failed);
+            if (getTier() != Tier.FULL) {
+                reducedFailures.addAndGet(failed);
+            }
+        }
+    }
+
+    Tier getTier() {
+        return Tier.values()[tier.get()];
+    }
+
+    /**
+     * Moves to the tier required by the current counters
+     *
+     * @return the new tier if this call moved the budget to it, null otherwise
+     */
+    Tier advance() {
+        int target = getTargetTier().ordinal();
+        int current = tier.get();
+        while (target > current) {
+            if (tier.compareAndSet(current, target)) {
+                return Tier.values()[target];
+            }
+            current = tier.get();
+        }
+        return null;
+    }
+
+    private Tier getTargetTier() {
+        Tier target = Tier.FULL;
+        long emitted = bytes.get();
+        if (budgetBytes > 0) {
+            if (emitted >= budgetBytes) {
+                target = Tier.COUNTS;
+            } else if (emitted >= budgetBytes / 4 * 3) {
+                target = Tier.FIRST_LINE;
+            } else if (emitted >= budgetBytes / 2) {
+                target = Tier.FILTERED_TRACES;
+            }
+        }
+        long finished = tests.get();
+        if (failureRatePercent > 0 && finished >= minTests && failures.get() * 100 >= finished * failureRatePercent
+                && target.compareTo(Tier.FIRST_LINE) < 0) {
+            target = Tier.FIRST_LINE;
+        }
+        return target;
+    }
+
+    String describeTransition(Tier newTier) {
+        return String.format("Output budget: reporting %s after %d bytes, %d of %d tests failed",
+                newTier.description, bytes.get(), failures.get(), tests.get());
+    }
+
+    void report(ServiceMessageSink sink) {
+        if (getTier() == Tier.FULL) {
+            return;
+        }
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("text", String.format("Output budget: %d of %d failures reported with reduced details, %d bytes emitted",
+                reducedFailures.get(), failures.get(), bytes.get()));
+        properties.put("status", "WARNING");
+        sink.print(ServiceMessages.format("message", properties));
+    }
+
+    static String getFirstLine(String text) {
+        int end = text.indexOf('\n');
+        if (end < 0) {
+            return text;
+        }
+        return text.substring(0, end > 0 && text.charAt(end - 1) == '\r' ? end - 1 : end);
+    }
+
+    /**
+     * Removes stack trace frames of test frameworks and reflection, every run of removed frames
+     * is replaced with a single line with their number
+     */
+    static String filterStackTrace(String stackTrace) {
+        StringBuilder builder = new StringBuilder(stackTrace.length());
+        int skipped = 0;
+        for (String line : stackTrace.split("\n", -1)) {
+            if (isFrameworkFrame(line)) {
+                skipped++;
+                continue;
+            }
+            appendSkipped(builder, skipped);
+            skipped = 0;
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(line);
+        }
+        appendSkipped(builder, skipped);
+        return builder.toString();
+    }
+
+    private static void appendSkipped(StringBuilder builder, int skipped) {
+        if (skipped > 0) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append("\t... ").append(skipped).append(" framework frames");
+        }
+    }
+
+    private static boolean isFrameworkFrame(String line) {
+        String frame = line.trim();
+        if (!frame.startsWith("at ")) {
+            return false;
+        }
+        for (String frameworkPackage : FRAMEWORK_PACKAGES) {
+            if (frame.startsWith(frameworkPackage, 3)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.vase4kin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * Captures System.out and System.err of a test thread while a test runs.
+ * Output goes to per-thread ring buffers keeping only the last bytes, the buffers are reused
+ * by all tests of the thread, so a passing test costs a buffer reset only.
+ * Output of other threads and of threads with no running test is printed as usual.
+ */
+class OutputCapture {
+
+    private static OutputCapture instance;
+
+    private final int bufferSize;
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<>();
+
+    OutputCapture(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Run-wide capture shared by all listener instances, replaces System.out and System.err once
+     */
+    static synchronized OutputCapture getInstance(int bufferSize) {
+        if (instance == null) {
+            instance = new OutputCapture(bufferSize);
+            System.setOut(instance.wrap(System.out, false));
+            System.setErr(instance.wrap(System.err, true));
+        }
+        return instance;
+    }
+
+    PrintStream wrap(PrintStream original, boolean err) {
+        return new PrintStream(new CapturingOutputStream(original, err), true);
+    }
+
+    /**
+     * Starts capturing output of the current thread, output of the previous test is discarded
+     */
+    void start() {
+        Buffers threadBuffers = buffers.get();
+        if (threadBuffers == null) {
+            threadBuffers = new Buffers(bufferSize);
+            buffers.set(threadBuffers);
+        }
+        threadBuffers.out.reset();
+        threadBuffers.err.reset();
+        threadBuffers.active = true;
+    }
+
+    /**
+     * Stops capturing output of the current thread
+     *
+     * @param keep false to discard the captured output without copying it
+     * @return captured output or null if it's discarded or nothing was printed
+     */
+    Captured stop(boolean keep) {
+        Buffers threadBuffers = buffers.get();
+        if (threadBuffers == null || !threadBuffers.active) {
+            return null;
+        }
+        threadBuffers.active = false;
+        if (!keep) {
+            return null;
+        }
+        String out = threadBuffers.out.getTail();
+        String err = threadBuffers.err.getTail();
+        return out != null || err != null ? new Captured(out, err) : null;
+    }
+
+    static class Captured {
+
+        private final String out;
+        private final String err;
+
+        Captured(String out, String err) {
+            this.out = out;
+            this.err = err;
+        }
+
+        /**
+         * @return captured standard output or null if nothing was printed
+         */
+        String getOut() {
+            return out;
+        }
+
+        /**
+         * @return captured standard error or null if nothing was printed
+         */
+        String getErr() {
+            return err;
+        }
+    }
+
+    private class CapturingOutputStream extends OutputStream {
+
+        private final PrintStream original;
+        private final boolean err;
+
+        private CapturingOutputStream(PrintStream original, boolean err) {
+            this.original = original;
+            this.err = err;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            Buffers threadBuffers = buffers.get();
+            if (threadBuffers != null && threadBuffers.active) {
+                (err ? threadBuffers.err : threadBuffers.out).write(b);
+            } else {
+                original.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            Buffers threadBuffers = buffers.get();
+            if (threadBuffers != null && threadBuffers.active) {
+                (err ? threadBuffers.err : threadBuffers.out).write(bytes, offset, length);
+            } else {
+                original.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            original.flush();
+        }
+    }
+
+    private static class Buffers {
+
+        private final RingBuffer out;
+        private final RingBuffer err;
+        private boolean active;
+
+        private Buffers(int size) {
+            out = new RingBuffer(size);
+            err = new RingBuffer(size);
+        }
+    }
+
+    static class RingBuffer {
+
+        private final byte[] bytes;
+        private long written;
+
+        RingBuffer(int size) {
+            bytes = new byte[size];
+        }
+
+        void reset() {
+            written = 0;
+        }
+
+        void write(int b) {
+            bytes[(int) (written % bytes.length)] = (byte) b;
+            written++;
+        }
+
+        void write(byte[] source, int offset, int length) {
+            if (length > bytes.length) {
+                written += length - bytes.length;
+                offset += length - bytes.length;
+                length = bytes.length;
+            }
+            int position = (int) (written % bytes.length);
+            int first = Math.min(length, bytes.length - position);
+            System.arraycopy(source, offset, bytes, position, first);
+            System.arraycopy(source, offset + first, bytes, 0, length - first);
+            written += length;
+        }
+
+        /**
+         * @return the last written bytes as text or null if nothing was written
+         */
+        String getTail() {
+            if (written == 0) {
+                return null;
+            }
+            if (written <= bytes.length) {
+                return new String(bytes, 0, (int) written, Charset.defaultCharset());
+            }
+            int position = (int) (written % bytes.length);
+            byte[] tail = new byte[bytes.length];
+            System.arraycopy(bytes, position, tail, 0, bytes.length - position);
+            System.arraycopy(bytes, 0, tail, bytes.length - position, position);
+            return "[" + (written - bytes.length) + " bytes truncated]\n" + new String(tail, Charset.defaultCharset());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.vase4kin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates progress of the run from test durations of a previous run.
+ * Finished known tests add their previous duration to the done work, the rate of done work
+ * per wall-clock millisecond gives the ETA of the remaining work.
+ * Progress is reported at most once per interval whatever the test rate is.
+ * Every test JVM sees only its own tests, so when the run is split between forks
+ * each of them expects an equal share of the previous run.
+ */
+class ProgressEstimator {
+
+    private static ProgressEstimator instance;
+    private static boolean unavailable;
+
+    private final DurationIndex index;
+    private final int forks;
+    private final long intervalMillis;
+    private final long startTime;
+    private final AtomicLong doneDuration = new AtomicLong();
+    private final AtomicLong finishedTests = new AtomicLong();
+    private final AtomicLong nextReportTime;
+
+    /**
+     * @param forks number of test JVMs the run is split between
+     */
+    ProgressEstimator(DurationIndex index, int forks, long intervalMillis, long startTime) {
+        this.index = index;
+        this.forks = Math.max(1, forks);
+        this.intervalMillis = intervalMillis;
+        this.startTime = startTime;
+        this.nextReportTime = new AtomicLong(startTime + intervalMillis);
+    }
+
+    /**
+     * Run-wide estimator shared by all listener instances
+     *
+     * @return null if durations of the previous run can't be read, the warning is printed once per run
+     */
+    static synchronized ProgressEstimator getInstance(ServiceMessageSink sink, File durations, int forks, long intervalMillis) {
+        if (instance == null && !unavailable) {
+            try {
+                instance = new ProgressEstimator(DurationIndex.read(durations), forks, intervalMillis, System.currentTimeMillis());
+            } catch (IOException e) {
+                unavailable = true;
+                Map<String, String> properties = new LinkedHashMap<>();
+                properties.put("text", "Can't read durations " + durations + ", progress is not reported: " + e.getMessage());
+                properties.put("status", "WARNING");
+                sink.print(ServiceMessages.format("message", properties));
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Records the finished test
+     *
+     * @return progress message text if it's time to report progress, null otherwise
+     */
+    String record(String suite, String method, long now) {
+        finishedTests.incrementAndGet();
+        long duration = index.get(DurationIndex.hash(suite + "#" + method));
+        if (duration > 0) {
+            doneDuration.addAndGet(duration);
+        }
+        long next = nextReportTime.get();
+        if (now < next || !nextReportTime.compareAndSet(next, now + intervalMillis)) {
+            return null;
+        }
+        return describe(now);
+    }
+
+    String describe(long now) {
+        long total = index.getTotalDuration() / forks;
+        long done = Math.min(doneDuration.get(), total);
+        long elapsed = Math.max(1, now - startTime);
+        StringBuilder builder = new StringBuilder();
+        builder.append(total > 0 ? done * 100 / total : 0).append(forks > 1 ? "% of this fork done" : "% done");
+        if (done > 0) {
+            long eta = (long) ((double) (total - done) * elapsed / done);
+            builder.append(", ETA ").append(formatDuration(eta));
+        }
+        builder.append(" (").append(finishedTests.get()).append(" tests finished, ").append((index.size() + forks - 1) / forks).append(" expected)");
+        return builder.toString();
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds >= 3600) {
+            return String.format("%dh %02dm", seconds / 3600, seconds % 3600 / 60);
+        }
+        if (seconds >= 60) {
+            return String.format("%dm %02ds", seconds / 60, seconds % 60);
+        }
+        return seconds + "s";
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.vase4kin;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Measures JVM resources used by a test between testStarted and testFinished:
+ * CPU time and allocated bytes of the test thread and JVM-wide garbage collections.
+ * Every measurement reads a few counters of the JVM, so it can be left on for every build.
+ */
+class ResourceMeter {
+
+    enum Metric {
+        CPU("cpu", "cpuTimeMs"),
+        ALLOCATED("allocated", "allocatedBytes"),
+        GC_COUNT("gc", "gcCount"),
+        GC_TIME("gc", "gcTimeMs");
+
+        private final String option;
+        private final String metadataName;
+
+        Metric(String option, String metadataName) {
+            this.option = option;
+            this.metadataName = metadataName;
+        }
+
+        String getMetadataName() {
+            return metadataName;
+        }
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    private final Set<Metric> metrics;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final com.sun.management.ThreadMXBean allocations;
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final ThreadLocal<long[]> started = new ThreadLocal<>();
+
+    ResourceMeter(Set<Metric> metrics) {
+        Set<Metric> supported = EnumSet.noneOf(Metric.class);
+        supported.addAll(metrics);
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            supported.remove(Metric.CPU);
+        } else if (supported.contains(Metric.CPU) && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        com.sun.management.ThreadMXBean sunThreads = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads
+                : null;
+        if (sunThreads == null || !sunThreads.isThreadAllocatedMemorySupported()) {
+            supported.remove(Metric.ALLOCATED);
+            sunThreads = null;
+        } else if (supported.contains(Metric.ALLOCATED) && !sunThreads.isThreadAllocatedMemoryEnabled()) {
+            sunThreads.setThreadAllocatedMemoryEnabled(true);
+        }
+        this.allocations = sunThreads;
+        this.metrics = supported;
+    }
+
+    /**
+     * @param options comma separated metric options: cpu, allocated, gc
+     */
+    static Set<Metric> parse(String options) {
+        Set<Metric> metrics = EnumSet.noneOf(Metric.class);
+        if (options == null) {
+            return metrics;
+        }
+        for (String option : options.split(",")) {
+            for (Metric metric : METRICS) {
+                if (metric.option.equalsIgnoreCase(option.trim())) {
+                    metrics.add(metric);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    Set<Metric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts measuring the current thread
+     */
+    void start() {
+        long[] values = started.get();
+        if (values == null) {
+            values = new long[METRICS.length];
+            started.set(values);
+        }
+        read(values);
+    }
+
+    /**
+     * @return resources used since start indexed by metric ordinal, -1 for not measured metrics,
+     * or null if measuring was not started on the current thread
+     */
+    long[] stop() {
+        long[] values = started.get();
+        if (values == null) {
+            return null;
+        }
+        started.remove();
+        long[] current = new long[METRICS.length];
+        read(current);
+        for (int i = 0; i < current.length; i++) {
+            current[i] = current[i] >= 0 && values[i] >= 0 ? current[i] - values[i] : -1;
+        }
+        return current;
+    }
+
+    private void read(long[] values) {
+        Arrays.fill(values, -1);
+        if (metrics.contains(Metric.CPU)) {
+            long nanos = threads.getCurrentThreadCpuTime();
+            values[Metric.CPU.ordinal()] = nanos >= 0 ? nanos / 1000000 : -1;
+        }
+        if (metrics.contains(Metric.ALLOCATED)) {
+            values[Metric.ALLOCATED.ordinal()] = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        if (metrics.contains(Metric.GC_COUNT)) {
+            long count = 0;
+            long time = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                count += Math.max(0, collector.getCollectionCount());
+                time += Math.max(0, collector.getCollectionTime());
+            }
+            values[Metric.GC_COUNT.ordinal()] = count;
+            values[Metric.GC_TIME.ordinal()] = time;
+        }
+    }
+
+    /**
+     * The tests of a suite which used the most of every metric
+     */
+    static class SuiteUsage {
+
+        private final int top;
+        private final Map<Metric, PriorityQueue<Usage>> offenders = new EnumMap<>(Metric.class);
+
+        SuiteUsage(int top) {
+            this.top = top;
+        }
+
+        void add(String testName, long[] values) {
+            for (Metric metric : METRICS) {
+                long value = values[metric.ordinal()];
+                if (value <= 0) {
+                    continue;
+                }
+                PriorityQueue<Usage> queue = offenders.get(metric);
+                if (queue == null) {
+                    queue = new PriorityQueue<>(top + 1);
+                    offenders.put(metric, queue);
+                }
+                if (queue.size() < top) {
+                    queue.add(new Usage(testName, value));
+                } else if (queue.peek().value < value) {
+                    queue.poll();
+                    queue.add(new Usage(testName, value));
+                }
+            }
+        }
+
+        /**
+         * @return description of the top offenders of every measured metric or null if nothing was measured
+         */
+        String describe(String suiteName) {
+            if (offenders.isEmpty()) {
+                return null;
+            }
+            StringBuilder builder = new StringBuilder("Resource usage of suite ").append(suiteName).append(':');
+            for (Map.Entry<Metric, PriorityQueue<Usage>> entry : offenders.entrySet()) {
+                List<Usage> usages = new ArrayList<>(entry.getValue());
+                Collections.sort(usages, Collections.reverseOrder());
+                builder.append("\n").append(entry.getKey().metadataName).append(':');
+                for (Usage usage : usages) {
+                    builder.append(' ').append(usage.testName).append('=').append(usage.value);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    private static class Usage implements Comparable<Usage> {
+
+        private final String testName;
+        private final long value;
+
+        private Usage(String testName, long value) {
+            this.testName = testName;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Usage other) {
+            return value < other.value ? -1 : value > other.value ? 1 : other.testName.compareTo(testName);
+        }
+    }
+}
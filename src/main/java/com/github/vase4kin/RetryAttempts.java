@@ -0,0 +1,91 @@
+package com.github.vase4kin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Attempts of a failed test which may be retried by Thucydides.
+ * Only the last attempt snapshot is kept, earlier attempts are reduced to their durations
+ * and, when requested, to their already rendered failure details.
+ */
+class RetryAttempts {
+
+    private final String testName;
+    private OutcomeSnapshot lastOutcome;
+    private TestAttachments lastAttachments;
+    private long[] durations = new long[4];
+    private int count;
+    private List<String> earlierDetails;
+    private boolean retried;
+
+    RetryAttempts(String testName) {
+        this.testName = testName;
+    }
+
+    /**
+     * Adds the next attempt, the previous attempt outcome is released
+     *
+     * @param previousDetails rendered details of the previous attempt or null if they are not kept
+     * @param attachments     attachments of the attempt or null
+     */
+    void add(OutcomeSnapshot outcome, String previousDetails, TestAttachments attachments) {
+        if (previousDetails != null) {
+            if (earlierDetails == null) {
+                earlierDetails = new ArrayList<>();
+            }
+            earlierDetails.add(previousDetails);
+        }
+        if (count == durations.length) {
+            durations = Arrays.copyOf(durations, count * 2);
+        }
+        durations[count++] = outcome.getDuration();
+        lastOutcome = outcome;
+        lastAttachments = attachments;
+        retried = false;
+    }
+
+    String getTestName() {
+        return testName;
+    }
+
+    OutcomeSnapshot getLastOutcome() {
+        return lastOutcome;
+    }
+
+    TestAttachments getLastAttachments() {
+        return lastAttachments;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getDuration(int attempt) {
+        return durations[attempt];
+    }
+
+    String getDurations() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(durations[i]);
+        }
+        return builder.toString();
+    }
+
+    List<String> getEarlierDetails() {
+        return earlierDetails != null ? earlierDetails : Collections.<String>emptyList();
+    }
+
+    boolean isRetried() {
+        return retried;
+    }
+
+    void setRetried() {
+        retried = true;
+    }
+}
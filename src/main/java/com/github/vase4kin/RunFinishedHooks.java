@@ -0,0 +1,65 @@
+package com.github.vase4kin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Run-wide actions executed once when the test JVM exits, in registration order.
+ * Thucydides has no run finished callback so a single shutdown hook is used.
+ */
+final class RunFinishedHooks {
+
+    /**
+     * Unique id of the test JVM, forks of one build write their reports under different names
+     */
+    static final String JVM_ID = System.currentTimeMillis() + "-" + Integer.toHexString(new Random().nextInt());
+
+    private static final List<Runnable> HOOKS = new ArrayList<>();
+
+    private static boolean installed;
+
+    private RunFinishedHooks() {
+    }
+
+    static synchronized void register(Runnable hook) {
+        if (!installed) {
+            Runtime.getRuntime().addShutdownHook(new Thread("teamcity-steplistener-run-finished") {
+                @Override
+                public void run() {
+                    runAll();
+                }
+            });
+            installed = true;
+        }
+        HOOKS.add(hook);
+    }
+
+    /**
+     * @return the report file with the JVM id before its extension, e.g. step-profile-1420070400000-5f3a9c.csv
+     */
+    static File getJvmFile(File report) {
+        String name = report.getName();
+        int dot = name.lastIndexOf('.');
+        String jvmName = dot > 0
+                ? name.substring(0, dot) + "-" + JVM_ID + name.substring(dot)
+                : name + "-" + JVM_ID;
+        return new File(report.getParentFile(), jvmName);
+    }
+
+    private static void runAll() {
+        List<Runnable> hooks;
+        synchronized (RunFinishedHooks.class) {
+            hooks = new ArrayList<>(HOOKS);
+            HOOKS.clear();
+        }
+        for (Runnable hook : hooks) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
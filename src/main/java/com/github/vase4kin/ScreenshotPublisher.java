@@ -0,0 +1,257 @@
+package com.github.vase4kin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes test screenshots as TeamCity artifacts on a background worker.
+ * Screenshots are deduplicated by content hash, every unique screenshot is hard-linked
+ * (or copied when linking is not possible) into the artifacts directory once,
+ * and each test gets testMetadata image links to its screenshots.
+ * Test threads only offer jobs to a bounded queue, jobs are dropped when the queue is full.
+ * Messages are printed from the worker thread to the sink of the job.
+ */
+class ScreenshotPublisher {
+
+    static final String ARTIFACTS_PATH = "screenshots";
+
+    private static final long FILE_WAIT_MILLIS = 2000;
+    private static final long FILE_POLL_MILLIS = 50;
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static ScreenshotPublisher instance;
+
+    private final File directory;
+    private final BlockingQueue<Job> queue;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // accessed by the worker thread only
+    private final Map<String, String> artifactsByHash = new HashMap<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final MessageDigest digest;
+
+    ScreenshotPublisher(File directory, int queueSize) {
+        this.directory = directory;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Thread worker = new Thread("teamcity-steplistener-screenshots") {
+            @Override
+            public void run() {
+                processJobs();
+            }
+        };
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * Run-wide publisher shared by all listener instances
+     */
+    static synchronized ScreenshotPublisher getInstance(File directory, int queueSize) {
+        if (instance == null) {
+            instance = new ScreenshotPublisher(directory, queueSize);
+            final ScreenshotPublisher publisher = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    publisher.drain(DRAIN_TIMEOUT_MILLIS);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Queues screenshots of the test, never blocks
+     *
+     * @return false if the queue is full and screenshots are dropped
+     */
+    boolean publish(String testName, List<File> screenshots, ServiceMessageSink sink, String flowId) {
+        if (screenshots.isEmpty()) {
+            return true;
+        }
+        pending.incrementAndGet();
+        if (!queue.offer(new Job(testName, screenshots, sink, flowId))) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until all queued screenshots are published
+     *
+     * @return true if the queue was drained before timeout
+     */
+    boolean drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(FILE_POLL_MILLIS / 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void processJobs() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                processJob(job);
+            } catch (RuntimeException e) {
+                job.sink.print(ServiceMessages.format("message", warning("Can't publish screenshots of " + job.testName + ": " + e)));
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void processJob(Job job) {
+        Set<String> testArtifacts = new LinkedHashSet<>();
+        for (File screenshot : job.screenshots) {
+            try {
+                String artifact = publishScreenshot(screenshot, job.sink);
+                if (artifact != null) {
+                    testArtifacts.add(artifact);
+                }
+            } catch (IOException e) {
+                job.sink.print(ServiceMessages.format("message", warning("Can't publish screenshot " + screenshot + ": " + e.getMessage())));
+            }
+        }
+        for (String artifact : testArtifacts) {
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("testName", job.testName);
+            properties.put("type", "image");
+            properties.put("value", ARTIFACTS_PATH + "/" + artifact);
+            if (job.flowId != null) {
+                properties.put("flowId", job.flowId);
+            }
+            job.sink.print(ServiceMessages.format("testMetadata", properties));
+        }
+    }
+
+    private String publishScreenshot(File screenshot, ServiceMessageSink sink) throws IOException {
+        if (!waitForFile(screenshot)) {
+            return null;
+        }
+        String hash = hash(screenshot);
+        String artifact = artifactsByHash.get(hash);
+        if (artifact != null) {
+            return artifact;
+        }
+        artifact = hash + getExtension(screenshot.getName());
+        Path target = new File(directory, artifact).toPath();
+        Files.createDirectories(directory.toPath());
+        try {
+            Files.createLink(target, screenshot.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // the same screenshot is published already
+        } catch (IOException | UnsupportedOperationException e) {
+            if (!Files.exists(target)) {
+                Files.copy(screenshot.toPath(), target);
+            }
+        }
+        artifactsByHash.put(hash, artifact);
+        sink.print(ServiceMessages.format("publishArtifacts", target.toAbsolutePath() + " => " + ARTIFACTS_PATH));
+        return artifact;
+    }
+
+    private boolean waitForFile(File screenshot) {
+        // screenshots may still be being written by Thucydides when the test is finished
+        long deadline = System.currentTimeMillis() + FILE_WAIT_MILLIS;
+        while (!screenshot.isFile()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(FILE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String hash(File file) throws IOException {
+        digest.reset();
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            readBuffer.clear();
+            while (channel.read(readBuffer) != -1) {
+                readBuffer.flip();
+                digest.update(readBuffer);
+                readBuffer.clear();
+            }
+        }
+        byte[] bytes = digest.digest();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static String getExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot);
+    }
+
+    private static Map<String, String> warning(String text) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("text", text);
+        properties.put("status", "WARNING");
+        return properties;
+    }
+
+    private static class Job {
+
+        private final String testName;
+        private final List<File> screenshots;
+        private final ServiceMessageSink sink;
+        private final String flowId;
+
+        private Job(String testName, List<File> screenshots, ServiceMessageSink sink, String flowId) {
+            this.testName = testName;
+            this.screenshots = screenshots;
+            this.sink = sink;
+            this.flowId = flowId;
+        }
+    }
+}
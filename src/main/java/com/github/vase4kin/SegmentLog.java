@@ -0,0 +1,189 @@
+package com.github.vase4kin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Full failure details written to memory-mapped segment files while the build log gets compact
+ * messages referencing them. Records are appended to the mapped region of the segment without forcing it
+ * to disk, the OS writes pages back in the background. The segment is mapped region by region, so a segment
+ * sealed early holds no more than a region of address space. A full segment, or the current one when a suite
+ * is finished, is sealed: unmapped, truncated to its content and queued to be published as a build artifact.
+ */
+class SegmentLog {
+
+    static final String ARTIFACTS_PATH = "steplistener-details";
+
+    private static final int REGION_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static SegmentLog instance;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final int regionSize;
+    private final List<File> sealed = new ArrayList<>();
+    private int segmentNumber;
+    private File segment;
+    private FileChannel channel;
+    private long regionStart;
+    private MappedByteBuffer buffer;
+
+    /**
+     * @param prefix      segment file name prefix, unique for the JVM
+     * @param segmentSize bytes after which a new segment is started, larger records get a segment of their own
+     * @param regionSize  bytes of the segment mapped at once
+     */
+    SegmentLog(File directory, String prefix, int segmentSize, int regionSize) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.regionSize = Math.min(regionSize, segmentSize);
+    }
+
+    /**
+     * Run-wide log shared by all listener instances, the last segment is sealed and published
+     * when the run is finished
+     */
+    static synchronized SegmentLog getInstance(final ServiceMessageSink sink, File directory, int segmentSize) {
+        if (instance == null) {
+            String prefix = "details-" + RunFinishedHooks.JVM_ID;
+            instance = new SegmentLog(directory, prefix, segmentSize, REGION_SIZE);
+            final SegmentLog log = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        log.seal();
+                    } catch (IOException e) {
+                        Map<String, String> properties = new LinkedHashMap<>();
+                        properties.put("text", "Can't seal details log segment: " + e.getMessage());
+                        properties.put("status", "WARNING");
+                        sink.print(ServiceMessages.format("message", properties));
+                    }
+                    for (File file : log.pollSealed()) {
+                        sink.print(formatPublishArtifacts(file));
+                    }
+                }
+            });
+        }
+        return instance;
+    }
+
+    static String formatPublishArtifacts(File file) {
+        return ServiceMessages.format("publishArtifacts", file.getAbsolutePath() + " => " + ARTIFACTS_PATH);
+    }
+
+    /**
+     * Appends a record titled with the test name
+     *
+     * @return reference to the record: artifact path, byte offset and length
+     */
+    synchronized String append(String testName, String text) throws IOException {
+        byte[] record = ("=== " + testName + "\n" + text + "\n").getBytes(UTF_8);
+        if (buffer == null || buffer.remaining() < record.length) {
+            long position = buffer != null ? regionStart + buffer.position() : 0;
+            if (buffer != null && position + record.length <= segmentSize) {
+                unmap(buffer);
+                map(position, (int) Math.min(Math.max(regionSize, record.length), segmentSize - position));
+            } else {
+                seal();
+                open();
+                map(0, Math.max(regionSize, record.length));
+            }
+        }
+        long offset = regionStart + buffer.position();
+        buffer.put(record);
+        return ARTIFACTS_PATH + "/" + segment.getName() + " at " + offset + ", " + record.length + " bytes";
+    }
+
+    /**
+     * @return segments sealed since the previous call
+     */
+    synchronized List<File> pollSealed() {
+        List<File> files = new ArrayList<>(sealed);
+        sealed.clear();
+        return files;
+    }
+
+    /**
+     * Truncates the current segment to its content and queues it for publishing.
+     * The region is unmapped first, a mapped file can't be truncated on Windows.
+     */
+    synchronized void seal() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        long length = buffer != null ? regionStart + buffer.position() : regionStart;
+        FileChannel sealedChannel = channel;
+        if (buffer != null) {
+            unmap(buffer);
+        }
+        sealed.add(segment);
+        channel = null;
+        buffer = null;
+        segment = null;
+        try {
+            sealedChannel.truncate(length);
+        } finally {
+            sealedChannel.close();
+        }
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        segment = new File(directory, prefix + "-" + ++segmentNumber + ".log");
+        channel = new RandomAccessFile(segment, "rw").getChannel();
+    }
+
+    private void map(long position, int size) throws IOException {
+        // the buffer is dropped first, so a failed mapping doesn't leave an unmapped one in use
+        buffer = null;
+        regionStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+    }
+
+    /**
+     * Releases the mapping at once instead of when the buffer is garbage collected,
+     * the buffer must not be used afterwards
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            // JDK 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            // JDK 7 and 8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // left to the garbage collector
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // left to the garbage collector
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.vase4kin;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Parsed TeamCity service message, either with a single value or with attributes
+ */
+public class ServiceMessage {
+
+    private final long lineNumber;
+    private final String name;
+    private final String value;
+    private final Map<String, String> attributes;
+
+    ServiceMessage(long lineNumber, String name, String value, Map<String, String> attributes) {
+        this.lineNumber = lineNumber;
+        this.name = name;
+        this.value = value;
+        this.attributes = attributes != null ? attributes : Collections.<String, String>emptyMap();
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return value of a single value message, e.g. ##teamcity[publishArtifacts 'path'], otherwise null
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public String getAttribute(String attributeName) {
+        return attributes.get(attributeName);
+    }
+
+    @Override
+    public String toString() {
+        return name + (value != null ? " '" + value + "'" : " " + attributes);
+    }
+}
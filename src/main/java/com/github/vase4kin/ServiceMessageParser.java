@@ -0,0 +1,207 @@
+package com.github.vase4kin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streaming parser of TeamCity service messages. Reads a log line by line, every line containing
+ * ##teamcity[ is parsed into a {@link ServiceMessage}, other lines are skipped.
+ * Values are unescaped following TeamCity rules, invalid escapes and unescaped quotes or brackets
+ * are reported as malformed messages.
+ */
+public class ServiceMessageParser {
+
+    private static final String MESSAGE_PREFIX = "##teamcity[";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public interface Handler {
+
+        void message(ServiceMessage message);
+
+        void malformed(long lineNumber, String line, String error);
+    }
+
+    private final BufferedReader reader;
+    private final StringBuilder valueBuilder = new StringBuilder();
+    private long lineNumber;
+    private long charsRead;
+
+    public ServiceMessageParser(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, BUFFER_SIZE);
+    }
+
+    public ServiceMessageParser() {
+        this(new StringReader(""));
+    }
+
+    /**
+     * Parses the whole stream
+     *
+     * @return number of parsed messages
+     */
+    public long parse(Handler handler) throws IOException {
+        long messages = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (parse(line, handler)) {
+                messages++;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Parses a single log line, e.g. a message captured from a sink
+     *
+     * @return true if the line contains a well-formed message
+     */
+    public boolean parse(String line, Handler handler) {
+        lineNumber++;
+        charsRead += line.length() + 1;
+        int start = line.indexOf(MESSAGE_PREFIX);
+        return start >= 0 && parseLine(line, start + MESSAGE_PREFIX.length(), handler);
+    }
+
+    public long getLineCount() {
+        return lineNumber;
+    }
+
+    public long getCharCount() {
+        return charsRead;
+    }
+
+    private boolean parseLine(String line, int position, Handler handler) {
+        int length = line.length();
+        int nameEnd = position;
+        while (nameEnd < length && line.charAt(nameEnd) != ' ' && line.charAt(nameEnd) != ']') {
+            nameEnd++;
+        }
+        if (nameEnd == position || nameEnd == length) {
+            handler.malformed(lineNumber, line, "message name or closing bracket is missing");
+            return false;
+        }
+        String name = line.substring(position, nameEnd);
+        position = skipSpaces(line, nameEnd);
+        if (position < length && line.charAt(position) == '\'') {
+            position = parseValue(line, position + 1, handler);
+            if (position < 0) {
+                return false;
+            }
+            String value = valueBuilder.toString();
+            position = skipSpaces(line, position);
+            if (position >= length || line.charAt(position) != ']') {
+                handler.malformed(lineNumber, line, "closing bracket is missing");
+                return false;
+            }
+            handler.message(new ServiceMessage(lineNumber, name, value, null));
+            return true;
+        }
+        Map<String, String> attributes = new LinkedHashMap<>();
+        while (position < length && line.charAt(position) != ']') {
+            int keyEnd = line.indexOf("='", position);
+            if (keyEnd < 0) {
+                handler.malformed(lineNumber, line, "attribute value is missing");
+                return false;
+            }
+            String key = line.substring(position, keyEnd);
+            if (key.isEmpty() || key.indexOf(' ') >= 0) {
+                handler.malformed(lineNumber, line, "invalid attribute name '" + key + "'");
+                return false;
+            }
+            position = parseValue(line, keyEnd + 2, handler);
+            if (position < 0) {
+                return false;
+            }
+            if (attributes.put(key, valueBuilder.toString()) != null) {
+                handler.malformed(lineNumber, line, "duplicated attribute '" + key + "'");
+                return false;
+            }
+            position = skipSpaces(line, position);
+        }
+        if (position >= length) {
+            handler.malformed(lineNumber, line, "closing bracket is missing");
+            return false;
+        }
+        handler.message(new ServiceMessage(lineNumber, name, null, attributes));
+        return true;
+    }
+
+    /**
+     * Unescapes a quoted value into valueBuilder
+     *
+     * @return position after the closing quote or -1 if the value is malformed
+     */
+    private int parseValue(String line, int position, Handler handler) {
+        valueBuilder.setLength(0);
+        int length = line.length();
+        while (position < length) {
+            char c = line.charAt(position++);
+            if (c == '\'') {
+                return position;
+            }
+            if (c == '[' || c == ']') {
+                handler.malformed(lineNumber, line, "unescaped '" + c + "' at " + (position - 1));
+                return -1;
+            }
+            if (c != '|') {
+                valueBuilder.append(c);
+                continue;
+            }
+            if (position >= length) {
+                break;
+            }
+            char escaped = line.charAt(position++);
+            switch (escaped) {
+                case '\'':
+                case '|':
+                case '[':
+                case ']':
+                    valueBuilder.append(escaped);
+                    break;
+                case 'n':
+                    valueBuilder.append('\n');
+                    break;
+                case 'r':
+                    valueBuilder.append('\r');
+                    break;
+                case 'x':
+                    valueBuilder.append((char) 0x0085);
+                    break;
+                case 'l':
+                    valueBuilder.append((char) 0x2028);
+                    break;
+                case 'p':
+                    valueBuilder.append((char) 0x2029);
+                    break;
+                case '0':
+                    if (position + 5 <= length && line.charAt(position) == 'x') {
+                        try {
+                            valueBuilder.append((char) Integer.parseInt(line.substring(position + 1, position + 5), 16));
+                            position += 5;
+                            break;
+                        } catch (NumberFormatException e) {
+                            // reported below
+                        }
+                    }
+                    handler.malformed(lineNumber, line, "invalid unicode escape at " + (position - 2));
+                    return -1;
+                default:
+                    handler.malformed(lineNumber, line, "invalid escape '|" + escaped + "' at " + (position - 2));
+                    return -1;
+            }
+        }
+        handler.malformed(lineNumber, line, "closing quote is missing");
+        return -1;
+    }
+
+    private static int skipSpaces(String line, int position) {
+        while (position < line.length() && line.charAt(position) == ' ') {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,9 @@
+package com.github.vase4kin;
+
+/**
+ * Destination for formatted TeamCity service messages
+ */
+public interface ServiceMessageSink {
+
+    void print(String message);
+}
@@ -0,0 +1,198 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Validates a stream of TeamCity service messages against TeamCity test reporting rules:
+ * suites are balanced and finished in reverse order, every started test is finished,
+ * test messages refer to the test currently running in the same flow and values are properly escaped.
+ * Every flowId is validated as an independent stream.
+ */
+public class ServiceMessageValidator implements ServiceMessageParser.Handler {
+
+    private static final int MAX_STORED_VIOLATIONS = 1000;
+    private static final String DEFAULT_FLOW = "";
+
+    private static final Set<String> TEST_MESSAGES = new HashSet<>(Arrays.asList(
+            "testFailed", "testIgnored", "testStdOut", "testStdErr"
+    ));
+
+    private final Map<String, Flow> flows = new LinkedHashMap<>();
+    private final List<String> violations = new ArrayList<>();
+    private long violationCount;
+    private long messageCount;
+
+    @Override
+    public void message(ServiceMessage message) {
+        messageCount++;
+        String name = message.getName();
+        if (message.getValue() != null) {
+            return;
+        }
+        Flow flow = getFlow(message.getAttribute("flowId"));
+        String testName = message.getAttribute("name");
+        if ("testSuiteStarted".equals(name)) {
+            if (requireName(message, testName)) {
+                flow.suites.push(testName);
+            }
+        } else if ("testSuiteFinished".equals(name)) {
+            if (!requireName(message, testName)) {
+                return;
+            }
+            if (flow.test != null) {
+                violation(message, "suite '" + testName + "' is finished while test '" + flow.test + "' is running");
+            }
+            if (flow.suites.isEmpty()) {
+                violation(message, "suite '" + testName + "' is finished but was not started");
+            } else if (!flow.suites.peek().equals(testName)) {
+                violation(message, "suite '" + testName + "' is finished but suite '" + flow.suites.peek() + "' is the current one");
+                flow.suites.remove(testName);
+            } else {
+                flow.suites.pop();
+            }
+        } else if ("testStarted".equals(name)) {
+            if (!requireName(message, testName)) {
+                return;
+            }
+            if (flow.test != null) {
+                violation(message, "test '" + testName + "' is started while test '" + flow.test + "' is running");
+            }
+            flow.test = testName;
+        } else if ("testFinished".equals(name)) {
+            if (!requireName(message, testName)) {
+                return;
+            }
+            if (!testName.equals(flow.test)) {
+                violation(message, "test '" + testName + "' is finished but " + describeRunningTest(flow));
+            }
+            String duration = message.getAttribute("duration");
+            if (duration != null && !isNumber(duration)) {
+                violation(message, "test '" + testName + "' has invalid duration '" + duration + "'");
+            }
+            flow.test = null;
+        } else if (TEST_MESSAGES.contains(name)) {
+            if (requireName(message, testName) && !testName.equals(flow.test)) {
+                violation(message, name + " for test '" + testName + "' but " + describeRunningTest(flow));
+            }
+        }
+    }
+
+    @Override
+    public void malformed(long lineNumber, String line, String error) {
+        violation(lineNumber, "malformed message, " + error);
+    }
+
+    /**
+     * Reports tests and suites which are not finished at the end of the stream
+     */
+    public void finish() {
+        for (Map.Entry<String, Flow> flow : flows.entrySet()) {
+            String flowDescription = flow.getKey().equals(DEFAULT_FLOW) ? "" : " in flow '" + flow.getKey() + "'";
+            if (flow.getValue().test != null) {
+                violation(-1, "test '" + flow.getValue().test + "' is not finished" + flowDescription);
+            }
+            for (String suite : flow.getValue().suites) {
+                violation(-1, "suite '" + suite + "' is not finished" + flowDescription);
+            }
+        }
+        flows.clear();
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public long getViolationCount() {
+        return violationCount;
+    }
+
+    /**
+     * @return first violations found, at most 1000 are kept
+     */
+    public List<String> getViolations() {
+        return violations;
+    }
+
+    public boolean isValid() {
+        return violationCount == 0;
+    }
+
+    private Flow getFlow(String flowId) {
+        String key = flowId != null ? flowId : DEFAULT_FLOW;
+        Flow flow = flows.get(key);
+        if (flow == null) {
+            flow = new Flow();
+            flows.put(key, flow);
+        }
+        return flow;
+    }
+
+    private boolean requireName(ServiceMessage message, String testName) {
+        if (testName == null) {
+            violation(message, message.getName() + " has no name attribute");
+            return false;
+        }
+        return true;
+    }
+
+    private static String describeRunningTest(Flow flow) {
+        return flow.test != null ? "test '" + flow.test + "' is running" : "no test is running";
+    }
+
+    private static boolean isNumber(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void violation(ServiceMessage message, String violation) {
+        violation(message.getLineNumber(), violation);
+    }
+
+    private void violation(long lineNumber, String violation) {
+        violationCount++;
+        if (violations.size() < MAX_STORED_VIOLATIONS) {
+            violations.add(lineNumber >= 0 ? "line " + lineNumber + ": " + violation : violation);
+        }
+    }
+
+    private static class Flow {
+
+        private final Deque<String> suites = new ArrayDeque<>();
+        private String test;
+    }
+
+    /**
+     * Validates a captured build log. Usage: ServiceMessageValidator &lt;log file&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ServiceMessageValidator <log file>");
+            System.exit(2);
+        }
+        ServiceMessageValidator validator = new ServiceMessageValidator();
+        long started = System.nanoTime();
+        ServiceMessageParser parser;
+        try (Reader reader = new InputStreamReader(new FileInputStream(args[0]), Charset.forName("UTF-8"))) {
+            parser = new ServiceMessageParser(reader);
+            parser.parse(validator);
+        }
+        validator.finish();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        for (String violation : validator.getViolations()) {
+            System.out.println(violation);
+        }
+        System.out.println(String.format("%d lines, %d messages, %d violations in %.2f s (%.1f MB/s)",
+                parser.getLineCount(), validator.getMessageCount(), validator.getViolationCount(),
+                seconds, parser.getCharCount() / 1e6 / seconds));
+        System.exit(validator.isValid() ? 0 : 1);
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.vase4kin;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Formatting of TeamCity service messages
+ */
+final class ServiceMessages {
+
+    private static final String MESSAGE_PREFIX = "##teamcity[";
+
+    private static final int ESCAPE_CACHE_SIZE = Integer.getInteger("teamcity.steplistener.escapeCache", 4096);
+    private static final int ESCAPE_CACHE_MAX_LENGTH = 256;
+
+    static final EscapeCache ESCAPE_CACHE = ESCAPE_CACHE_SIZE > 0
+            ? new EscapeCache(ESCAPE_CACHE_SIZE, ESCAPE_CACHE_MAX_LENGTH)
+            : null;
+
+    private static boolean escapeCacheReported;
+
+    private ServiceMessages() {
+    }
+
+    static String escape(String value) {
+        return ESCAPE_CACHE != null ? ESCAPE_CACHE.escape(value) : escapeValue(value);
+    }
+
+    /**
+     * Escapes the value in a single pass, the output is the same as replacing in order
+     * \| with ||, ' with |', \n with |n, \r with |r, \[ with |[, \] with |], [ with |[ and ] with |],
+     * so an escaped bracket gets a double pipe and a single pipe is kept as is
+     */
+    static String escapeValue(String value) {
+        int length = value.length();
+        int first = 0;
+        while (first < length && !isEscaped(value.charAt(first))) {
+            first++;
+        }
+        if (first == length) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(length + 16);
+        builder.append(value, 0, first);
+        for (int i = first; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    char next = i + 1 < length ? value.charAt(i + 1) : 0;
+                    if (next == '|') {
+                        builder.append("||");
+                        i++;
+                    } else if (next == '[' || next == ']') {
+                        builder.append("||").append(next);
+                        i++;
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+                case '\'':
+                    builder.append("|'");
+                    break;
+                case '\n':
+                    builder.append("|n");
+                    break;
+                case '\r':
+                    builder.append("|r");
+                    break;
+                case '[':
+                case ']':
+                    builder.append('|').append(c);
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean isEscaped(char c) {
+        return c == '\\' || c == '\'' || c == '\n' || c == '\r' || c == '[' || c == ']';
+    }
+
+    /**
+     * Reports escape cache hit rate as build statistic values when the run is finished, once per run
+     */
+    static synchronized void reportEscapeCache(final ServiceMessageSink sink) {
+        if (ESCAPE_CACHE == null || escapeCacheReported) {
+            return;
+        }
+        escapeCacheReported = true;
+        RunFinishedHooks.register(new Runnable() {
+            @Override
+            public void run() {
+                printStatistic(sink, "teamcity.steplistener.escapeCache.hits", ESCAPE_CACHE.getHits());
+                printStatistic(sink, "teamcity.steplistener.escapeCache.misses", ESCAPE_CACHE.getMisses());
+                printStatistic(sink, "teamcity.steplistener.escapeCache.hitRate", ESCAPE_CACHE.getHitRate());
+            }
+        });
+    }
+
+    private static void printStatistic(ServiceMessageSink sink, String key, long value) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("key", key);
+        properties.put("value", String.valueOf(value));
+        sink.print(format("buildStatisticValue", properties));
+    }
+
+    static String format(String messageName, Map<String, String> properties) {
+        return format(messageName, properties, null);
+    }
+
+    /**
+     * Formats a message whose value of the escaped key is escaped already, e.g. details escaped step by step
+     */
+    static String format(String messageName, Map<String, String> properties, String escapedKey) {
+        // String.format would load Formatter and regex classes into every forked JVM
+        StringBuilder builder = new StringBuilder(MESSAGE_PREFIX).append(messageName).append(' ');
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            String value = property.getKey().equals(escapedKey) ? property.getValue() : escape(property.getValue());
+            builder.append(' ').append(property.getKey()).append("='").append(value).append('\'');
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * Renders a message into direct chunks, the value of the last attribute is streamed by the content
+     */
+    static void format(ChunkedMessage out, String messageName, Map<String, String> properties,
+                       String streamedName, ChunkedMessage.Content content) throws IOException {
+        out.append(MESSAGE_PREFIX).append(messageName).append(' ');
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            out.append(' ').append(property.getKey()).append("='").append(escape(property.getValue())).append('\'');
+        }
+        out.append(' ').append(streamedName).append("='").startEscaped();
+        content.appendTo(out);
+        out.endEscaped().append("']");
+    }
+
+    /**
+     * Formats a single attribute message, e.g. ##teamcity[publishArtifacts 'path']
+     */
+    static String format(String messageName, String value) {
+        return MESSAGE_PREFIX + messageName + " '" + escape(value) + "']";
+    }
+}
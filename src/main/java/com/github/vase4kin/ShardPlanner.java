@@ -0,0 +1,198 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Splits suites (or single tests) into shards of balanced duration using durations
+ * recorded by the listener with the teamcity.steplistener.durations.dir property.
+ * Units are assigned longest first to the least loaded shard (LPT), units recorded
+ * in several files get their mean duration. Every shard is written as an include list
+ * for surefire/failsafe includesFile. Suites and tests which surefire can't select,
+ * e.g. JBehave stories, are skipped.
+ */
+public class ShardPlanner {
+
+    private final Map<String, long[]> suites = new HashMap<>();
+    private final Map<String, long[]> tests = new HashMap<>();
+    private int skipped;
+
+    /**
+     * Reads a durations file or all durations files of a directory
+     */
+    public void read(File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(DurationRecorder.FILE_PREFIX) && name.endsWith(DurationRecorder.FILE_SUFFIX);
+                }
+            });
+            if (files != null) {
+                Arrays.sort(files);
+                for (File child : files) {
+                    read(child);
+                }
+            }
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readLine(line);
+            }
+        }
+    }
+
+    void readLine(String line) {
+        String[] fields = line.split("\t");
+        try {
+            if (fields.length == 3 && fields[0].equals("S")) {
+                add(suites, fields[1], Long.parseLong(fields[2]));
+            } else if (fields.length == 4 && fields[0].equals("T")) {
+                add(tests, fields[1] + "#" + fields[2], Long.parseLong(fields[3]));
+            }
+        } catch (NumberFormatException e) {
+            // a line of a file truncated by a killed fork
+        }
+    }
+
+    private static void add(Map<String, long[]> units, String name, long duration) {
+        long[] stats = units.get(name);
+        if (stats == null) {
+            stats = new long[2];
+            units.put(name, stats);
+        }
+        stats[0] += duration;
+        stats[1]++;
+    }
+
+    /**
+     * @param count number of shards
+     * @param tests true to plan single tests as "suite#method", false to plan whole suites
+     */
+    public List<Shard> plan(int count, boolean tests) {
+        Map<String, long[]> units = new HashMap<>();
+        for (Map.Entry<String, long[]> unit : (tests ? this.tests : suites).entrySet()) {
+            if (isInclude(unit.getKey())) {
+                units.put(unit.getKey(), unit.getValue());
+            }
+        }
+        skipped = (tests ? this.tests : suites).size() - units.size();
+        final String[] names = units.keySet().toArray(new String[units.size()]);
+        final long[] durations = new long[names.length];
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < names.length; i++) {
+            long[] stats = units.get(names[i]);
+            durations[i] = stats[0] / stats[1];
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                long difference = durations[second] - durations[first];
+                return difference > 0 ? 1 : difference < 0 ? -1 : names[first].compareTo(names[second]);
+            }
+        });
+        List<Shard> shards = new ArrayList<>(count);
+        PriorityQueue<Shard> byDuration = new PriorityQueue<>(count, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard first, Shard second) {
+                long difference = first.duration - second.duration;
+                return difference > 0 ? 1 : difference < 0 ? -1 : first.index - second.index;
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            Shard shard = new Shard(i);
+            shards.add(shard);
+            byDuration.add(shard);
+        }
+        for (Integer unit : order) {
+            Shard shard = byDuration.poll();
+            shard.includes.add(names[unit]);
+            shard.duration += durations[unit];
+            byDuration.add(shard);
+        }
+        for (Shard shard : shards) {
+            Collections.sort(shard.includes);
+        }
+        return shards;
+    }
+
+    /**
+     * @return number of units skipped by the last plan because surefire can't select them
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return true for a test class path with an optional plain method name, e.g. com/example/LoginTest.java#login
+     */
+    static boolean isInclude(String unit) {
+        int hash = unit.indexOf('#');
+        String suite = hash < 0 ? unit : unit.substring(0, hash);
+        String method = hash < 0 ? "" : unit.substring(hash + 1);
+        return suite.endsWith(".java") && method.indexOf('[') < 0 && method.indexOf('*') < 0 && method.indexOf('?') < 0;
+    }
+
+    public static class Shard {
+
+        private final int index;
+        private final List<String> includes = new ArrayList<>();
+        private long duration;
+
+        private Shard(int index) {
+            this.index = index;
+        }
+
+        public List<String> getIncludes() {
+            return includes;
+        }
+
+        /**
+         * @return expected duration of the shard in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * Usage: ShardPlanner [--tests] &lt;number of shards&gt; &lt;output directory&gt; &lt;durations files or directories...&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean tests = arguments.remove("--tests");
+        if (arguments.size() < 3) {
+            System.err.println("Usage: ShardPlanner [--tests] <number of shards> <output directory> <durations files or directories...>");
+            System.exit(2);
+        }
+        int count = Integer.parseInt(arguments.get(0));
+        File output = new File(arguments.get(1));
+        long started = System.nanoTime();
+        ShardPlanner planner = new ShardPlanner();
+        for (String file : arguments.subList(2, arguments.size())) {
+            planner.read(new File(file));
+        }
+        List<Shard> shards = planner.plan(count, tests);
+        if (planner.getSkipped() > 0) {
+            System.err.println(String.format("skipped %d %s which surefire can't select, e.g. JBehave stories",
+                    planner.getSkipped(), tests ? "tests" : "suites"));
+        }
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Can't create directory " + output);
+        }
+        for (Shard shard : shards) {
+            File file = new File(output, "shard-" + (shard.index + 1) + ".txt");
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")))) {
+                for (String include : shard.includes) {
+                    writer.println(include);
+                }
+            }
+            System.out.println(String.format("%s: %d %s, %.1f s", file, shard.includes.size(), tests ? "tests" : "suites", shard.duration / 1e3));
+        }
+        System.out.println(String.format("planned in %.2f s", (System.nanoTime() - started) / 1e9));
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.vase4kin;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Prints service messages to System.out as it is when the sink is created, where TeamCity reads them.
+ * Skips logging framework initialization in every forked test JVM. System.out is used rather than
+ * the process standard output, since surefire replaces it in forked JVMs and warns about anything
+ * else written to the standard output. Chunked messages are written chunk by chunk without decoding
+ * when the output charset is UTF-8, with a gathering write if the channel supports it.
+ */
+public class StdoutSink implements ChunkedMessageSink {
+
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(Charset.forName("UTF-8"));
+
+    private final PrintWriter out;
+    private final WritableByteChannel channel;
+    private final Object lock;
+
+    public StdoutSink() {
+        this(System.out, Charset.defaultCharset());
+    }
+
+    StdoutSink(PrintStream stdout, Charset charset) {
+        // locked on the stream, so other output of the JVM is not written between chunks of a message
+        this(new PrintWriter(new OutputStreamWriter(stdout, charset), true),
+                charset.name().equals("UTF-8") ? Channels.newChannel(stdout) : null, stdout);
+    }
+
+    StdoutSink(PrintWriter out) {
+        this(out, null);
+    }
+
+    StdoutSink(PrintWriter out, GatheringByteChannel channel) {
+        this(out, channel, new Object());
+    }
+
+    private StdoutSink(PrintWriter out, WritableByteChannel channel, Object lock) {
+        this.out = out;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    @Override
+    public void print(String message) {
+        synchronized (lock) {
+            out.println(message);
+        }
+    }
+
+    @Override
+    public void print(ChunkedMessage message) {
+        if (channel == null) {
+            print(message.toString());
+            return;
+        }
+        ByteBuffer[] chunks = message.getBuffers();
+        ByteBuffer[] buffers = new ByteBuffer[chunks.length + 1];
+        System.arraycopy(chunks, 0, buffers, 0, chunks.length);
+        buffers[chunks.length] = ByteBuffer.wrap(LINE_SEPARATOR);
+        synchronized (lock) {
+            out.flush();
+            try {
+                if (channel instanceof GatheringByteChannel) {
+                    long remaining = message.length() + LINE_SEPARATOR.length;
+                    while (remaining > 0) {
+                        remaining -= ((GatheringByteChannel) channel).write(buffers);
+                    }
+                } else {
+                    for (ByteBuffer buffer : buffers) {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // errors are not reported, the same as for messages printed with the PrintWriter
+            }
+        }
+    }
+}
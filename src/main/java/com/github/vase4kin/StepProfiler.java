@@ -0,0 +1,280 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.TestStep;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates step durations by normalized step description across the run.
+ * Group steps are counted with their full duration and with their own (self) time,
+ * which excludes the time of their children. At the end of the run the slowest steps
+ * are reported as build statistic values and the whole profile is published as a CSV artifact.
+ */
+class StepProfiler {
+
+    private static final int HISTOGRAM_BUCKETS = 32;
+    private static final String CSV_HEADER = "step,count,totalMs,selfMs,avgMs,maxMs,p50Ms,p90Ms";
+
+    private static StepProfiler instance;
+
+    private final ConcurrentMap<String, StepStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Run-wide profiler shared by all listener instances, every test JVM writes its own report
+     */
+    static synchronized StepProfiler getInstance(final ServiceMessageSink sink, final int top, File report) {
+        if (instance == null) {
+            final File jvmReport = RunFinishedHooks.getJvmFile(report);
+            instance = new StepProfiler();
+            final StepProfiler profiler = instance;
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    profiler.report(sink, top, jvmReport);
+                }
+            });
+        }
+        return instance;
+    }
+
+    void record(List<TestStep> testSteps) {
+        for (TestStep testStep : testSteps) {
+            if (isExample(testStep)) {
+                record(testStep.getChildren());
+            } else {
+                record(testStep);
+            }
+        }
+    }
+
+    private void record(TestStep testStep) {
+        long duration = testStep.getDuration();
+        long self = duration;
+        for (TestStep child : testStep.getChildren()) {
+            self -= child.getDuration();
+            record(child);
+        }
+        getStats(normalize(testStep.getDescription())).add(duration, Math.max(self, 0));
+    }
+
+    private StepStats getStats(String description) {
+        StepStats stepStats = stats.get(description);
+        if (stepStats == null) {
+            StepStats created = new StepStats(description);
+            stepStats = stats.putIfAbsent(description, created);
+            if (stepStats == null) {
+                stepStats = created;
+            }
+        }
+        return stepStats;
+    }
+
+    List<StepStats> getSlowestSteps(int top) {
+        List<StepStats> steps = new ArrayList<>(stats.values());
+        Collections.sort(steps, new Comparator<StepStats>() {
+            @Override
+            public int compare(StepStats first, StepStats second) {
+                long difference = second.total.get() - first.total.get();
+                return difference > 0 ? 1 : difference < 0 ? -1 : first.description.compareTo(second.description);
+            }
+        });
+        return steps.subList(0, Math.min(top, steps.size()));
+    }
+
+    void report(ServiceMessageSink sink, int top, File report) {
+        Set<String> keys = new HashSet<>();
+        for (StepStats stepStats : getSlowestSteps(top)) {
+            String key = getKey(stepStats.description);
+            for (int i = 2; !keys.add(key); i++) {
+                key = getKey(stepStats.description) + "_" + i;
+            }
+            printStatistic(sink, "thucydides.step." + key + ".totalMs", stepStats.total.get());
+            printStatistic(sink, "thucydides.step." + key + ".maxMs", stepStats.max.get());
+        }
+        try {
+            writeCsv(report);
+            sink.print(ServiceMessages.format("publishArtifacts", report.getAbsolutePath()));
+        } catch (IOException e) {
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("text", "Can't write step profile " + report + ": " + e.getMessage());
+            properties.put("status", "WARNING");
+            sink.print(ServiceMessages.format("message", properties));
+        }
+    }
+
+    void writeCsv(File report) throws IOException {
+        File parent = report.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create directory " + parent);
+        }
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report), Charset.forName("UTF-8")))) {
+            writer.println(CSV_HEADER);
+            for (StepStats stepStats : getSlowestSteps(Integer.MAX_VALUE)) {
+                long count = stepStats.count.get();
+                writer.println(String.format("\"%s\",%d,%d,%d,%d,%d,%d,%d",
+                        stepStats.description.replace("\"", "\"\""),
+                        count,
+                        stepStats.total.get(),
+                        stepStats.self.get(),
+                        count > 0 ? stepStats.total.get() / count : 0,
+                        stepStats.max.get(),
+                        stepStats.percentile(0.5),
+                        stepStats.percentile(0.9)));
+            }
+        }
+    }
+
+    private static void printStatistic(ServiceMessageSink sink, String key, long value) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("key", key);
+        properties.put("value", String.valueOf(value));
+        sink.print(ServiceMessages.format("buildStatisticValue", properties));
+    }
+
+    /**
+     * Statistic key of the step: lower case letters and digits of the description separated by underscores,
+     * the description itself is in the CSV report
+     */
+    static String getKey(String description) {
+        StringBuilder builder = new StringBuilder(description.length());
+        for (int i = 0; i < description.length(); i++) {
+            char c = description.charAt(i);
+            if (c < 128 && Character.isLetterOrDigit(c)) {
+                builder.append(Character.toLowerCase(c));
+            } else if (builder.length() > 0 && builder.charAt(builder.length() - 1) != '_') {
+                builder.append('_');
+            }
+        }
+        if (builder.length() > 0 && builder.charAt(builder.length() - 1) == '_') {
+            builder.setLength(builder.length() - 1);
+        }
+        return builder.length() > 0 ? builder.toString() : "step";
+    }
+
+    private static boolean isExample(TestStep testStep) {
+        return testStep.isAGroup() && testStep.getDescription().startsWith("[");
+    }
+
+    /**
+     * Replaces quoted arguments and numbers with placeholders and collapses whitespaces,
+     * so "open page 'about'" and "open page 'contacts'" are counted as one step.
+     * A quote starts an argument only at a word boundary and when it's closed at a word boundary,
+     * so apostrophes as in "user's cart" are kept
+     */
+    static String normalize(String description) {
+        if (description == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(description.length());
+        boolean space = false;
+        for (int i = 0; i < description.length(); i++) {
+            char c = description.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = builder.length() > 0;
+                continue;
+            }
+            if (space) {
+                builder.append(' ');
+                space = false;
+            }
+            int end = c == '\'' || c == '"' ? getClosingQuote(description, i) : -1;
+            if (end >= 0) {
+                builder.append(c).append('*').append(c);
+                i = end;
+            } else if (Character.isDigit(c)) {
+                if (builder.length() == 0 || builder.charAt(builder.length() - 1) != '#') {
+                    builder.append('#');
+                }
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return index of the quote closing the one at the start index, or -1 if it doesn't start a quoted value
+     */
+    private static int getClosingQuote(String description, int start) {
+        char quote = description.charAt(start);
+        if (start > 0 && Character.isLetterOrDigit(description.charAt(start - 1))) {
+            return -1;
+        }
+        for (int i = description.indexOf(quote, start + 1); i >= 0; i = description.indexOf(quote, i + 1)) {
+            if (i + 1 == description.length() || !Character.isLetterOrDigit(description.charAt(i + 1))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static class StepStats {
+
+        private final String description;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong self = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        private StepStats(String description) {
+            this.description = description;
+        }
+
+        private void add(long duration, long selfDuration) {
+            count.incrementAndGet();
+            total.addAndGet(duration);
+            self.addAndGet(selfDuration);
+            long currentMax = max.get();
+            while (duration > currentMax && !max.compareAndSet(currentMax, duration)) {
+                currentMax = max.get();
+            }
+            histogram.incrementAndGet(bucket(duration));
+        }
+
+        /**
+         * @return upper bound in milliseconds of the histogram bucket containing the percentile
+         */
+        long percentile(double percentile) {
+            long threshold = (long) Math.ceil(count.get() * percentile);
+            long seen = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= threshold && seen > 0) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return max.get();
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getTotal() {
+            return total.get();
+        }
+
+        long getSelf() {
+            return self.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        private static int bucket(long duration) {
+            return duration <= 0 ? 0 : Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(duration));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.vase4kin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects hung steps: every test thread publishes the start time and description of its current
+ * step, a single low-priority thread scans them periodically and reports steps running longer
+ * than the threshold with the stack of the stuck thread, so the diagnostics are in the build log
+ * even if the fork is killed later. Nested steps are kept in a stack confined to the test thread,
+ * a finished step publishes its parent again. Starting and finishing a step costs one volatile write.
+ */
+class StepWatchdog {
+
+    private static final int MAX_STACK_DEPTH = 64;
+
+    private static StepWatchdog instance;
+
+    private final ServiceMessageSink sink;
+    private final String flowId;
+    private final long warnNanos;
+    private final long failNanos;
+    private final Queue<StepClock> clocks = new ConcurrentLinkedQueue<>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final ThreadLocal<StepClock> clock = new ThreadLocal<StepClock>() {
+        @Override
+        protected StepClock initialValue() {
+            StepClock stepClock = new StepClock(Thread.currentThread().getId());
+            clocks.add(stepClock);
+            return stepClock;
+        }
+    };
+
+    /**
+     * @param flowId     TeamCity flow id of the warnings, may be null
+     * @param warnMillis step duration reported with a warning
+     * @param failMillis step duration which fails the test, 0 to only warn
+     */
+    StepWatchdog(ServiceMessageSink sink, String flowId, long warnMillis, long failMillis) {
+        this.sink = sink;
+        this.flowId = flowId;
+        this.warnNanos = TimeUnit.MILLISECONDS.toNanos(warnMillis);
+        this.failNanos = TimeUnit.MILLISECONDS.toNanos(failMillis);
+    }
+
+    /**
+     * Run-wide watchdog shared by all listener instances, scans steps with the given interval
+     */
+    static synchronized StepWatchdog getInstance(ServiceMessageSink sink, String flowId, long warnMillis,
+                                                 long failMillis, final long intervalMillis) {
+        if (instance == null) {
+            instance = new StepWatchdog(sink, flowId, warnMillis, failMillis);
+            final StepWatchdog watchdog = instance;
+            Thread thread = new Thread("teamcity-steplistener-watchdog") {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        watchdog.scan(System.nanoTime());
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        return instance;
+    }
+
+    void stepStarted(String description) {
+        StepClock stepClock = clock.get();
+        stepClock.step = new Step(description, System.nanoTime(), stepClock.step);
+    }
+
+    void stepFinished() {
+        StepClock stepClock = clock.get();
+        Step step = stepClock.step;
+        if (step != null) {
+            stepClock.step = step.parent;
+        }
+    }
+
+    /**
+     * Clears steps left running by the previous test and its hung step record
+     */
+    void testStarted() {
+        StepClock stepClock = clock.get();
+        stepClock.step = null;
+        stepClock.hungStep = null;
+    }
+
+    /**
+     * @return description and stack of a step of the current test which ran longer than the fail threshold
+     * or null, the record is cleared for the next test
+     */
+    String pollHungStep() {
+        StepClock stepClock = clock.get();
+        String hungStep = stepClock.hungStep;
+        stepClock.hungStep = null;
+        return hungStep;
+    }
+
+    /**
+     * Reports every step once it exceeds the warning threshold and records it for the test once it
+     * exceeds the fail threshold
+     */
+    void scan(long now) {
+        Iterator<StepClock> iterator = clocks.iterator();
+        while (iterator.hasNext()) {
+            StepClock stepClock = iterator.next();
+            Step step = stepClock.step;
+            if (step == null) {
+                continue;
+            }
+            long running = now - step.startTime;
+            boolean warn = running >= warnNanos && !step.warned;
+            boolean fail = failNanos > 0 && running >= failNanos && !step.failed;
+            if (!warn && !fail) {
+                continue;
+            }
+            ThreadInfo info = threads.getThreadInfo(stepClock.threadId, MAX_STACK_DEPTH);
+            if (info == null) {
+                iterator.remove();
+                continue;
+            }
+            String description = "Step '" + step.description + "' of thread " + info.getThreadName()
+                    + " is running for " + TimeUnit.NANOSECONDS.toSeconds(running) + " s\n" + getStack(info);
+            if (warn) {
+                step.warned = true;
+                Map<String, String> properties = new LinkedHashMap<>();
+                properties.put("text", description);
+                properties.put("status", "WARNING");
+                if (flowId != null) {
+                    properties.put("flowId", flowId);
+                }
+                sink.print(ServiceMessages.format("message", properties));
+            }
+            if (fail) {
+                step.failed = true;
+                stepClock.hungStep = description;
+            }
+        }
+    }
+
+    private static String getStack(ThreadInfo info) {
+        StringBuilder builder = new StringBuilder(info.getThreadState().toString());
+        if (info.getLockName() != null) {
+            builder.append(" on ").append(info.getLockName());
+        }
+        for (StackTraceElement element : info.getStackTrace()) {
+            builder.append("\n\tat ").append(element);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Current step of a test thread, written by the thread and read by the watchdog
+     */
+    private static class StepClock {
+
+        private final long threadId;
+        private volatile Step step;
+        private volatile String hungStep;
+
+        private StepClock(long threadId) {
+            this.threadId = threadId;
+        }
+    }
+
+    /**
+     * Running step linked to the step it's nested in
+     */
+    private static class Step {
+
+        private final String description;
+        private final long startTime;
+        private final Step parent;
+        // accessed by the watchdog thread only
+        private boolean warned;
+        private boolean failed;
+
+        private Step(String description, long startTime, Step parent) {
+            this.description = description;
+            this.startTime = startTime;
+            this.parent = parent;
+        }
+    }
+}
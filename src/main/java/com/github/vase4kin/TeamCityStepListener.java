@@ -7,146 +7,779 @@ import net.thucydides.core.steps.StepListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static ch.lambdaj.Lambda.on;
-import static ch.lambdaj.Lambda.sum;
+import static com.github.vase4kin.ListenerEvents.EVENTS;
 
 public class TeamCityStepListener implements StepListener {
 
     private final String FLOW_ID = System.getProperty("teamcity.flowId");
-
-    private static final String MESSAGE_TEMPLATE = "##teamcity[%s %s]";
-    private static final String PROPERTY_TEMPLATE = " %s='%s'";
+    private final int PARALLEL_EXAMPLES_THRESHOLD = Integer.getInteger("teamcity.steplistener.parallelExamplesThreshold", 0);
+    private final String SCREENSHOTS_DIRECTORY = System.getProperty("teamcity.steplistener.screenshots.dir");
+    private final int SCREENSHOTS_QUEUE_SIZE = Integer.getInteger("teamcity.steplistener.screenshots.queueSize", 1024);
+    private final boolean STEP_PROFILER = Boolean.getBoolean("teamcity.steplistener.stepProfiler");
+    private final int STEP_PROFILER_TOP = Integer.getInteger("teamcity.steplistener.stepProfiler.top", 20);
+    private final String STEP_PROFILER_REPORT = System.getProperty("teamcity.steplistener.stepProfiler.report", "step-profile.csv");
+    private final boolean RETRIES = Boolean.getBoolean("teamcity.steplistener.retries");
+    private final boolean RETRIES_DETAILS = Boolean.getBoolean("teamcity.steplistener.retries.details");
+    private final long OUTPUT_BUDGET = Long.getLong("teamcity.steplistener.outputBudget", 0);
+    private final int OUTPUT_BUDGET_FAILURE_RATE = Integer.getInteger("teamcity.steplistener.outputBudget.failureRate", 0);
+    private final int OUTPUT_BUDGET_MIN_TESTS = Integer.getInteger("teamcity.steplistener.outputBudget.minTests", 100);
+    private final int CIRCUIT_BREAKER_WINDOW = Integer.getInteger("teamcity.steplistener.circuitBreaker.window", 0);
+    private final int CIRCUIT_BREAKER_THRESHOLD = Integer.getInteger("teamcity.steplistener.circuitBreaker.threshold", 80);
+    private final String DURATIONS_DIRECTORY = System.getProperty("teamcity.steplistener.durations.dir");
+    private final String PROGRESS_DURATIONS = System.getProperty("teamcity.steplistener.progress.durations");
+    private final long PROGRESS_INTERVAL = Long.getLong("teamcity.steplistener.progress.interval", 1000);
+    private final int PROGRESS_FORKS = Integer.getInteger("teamcity.steplistener.progress.forks", 1);
+    private final boolean CAPTURE = Boolean.getBoolean("teamcity.steplistener.capture");
+    private final int CAPTURE_SIZE = Integer.getInteger("teamcity.steplistener.capture.size", 64);
+    private final boolean CAPTURE_PASSED = Boolean.getBoolean("teamcity.steplistener.capture.passed");
+    private final String RESOURCES = System.getProperty("teamcity.steplistener.resources");
+    private final int RESOURCES_TOP = Integer.getInteger("teamcity.steplistener.resources.top", 5);
+    private final boolean ESCAPE_CACHE_STATS = Boolean.getBoolean("teamcity.steplistener.escapeCache.stats");
+    private final String COLLECTOR = System.getProperty("teamcity.steplistener.collector");
+    private final boolean COLLECTOR_COMPRESS = Boolean.getBoolean("teamcity.steplistener.collector.compress");
+    private final int COLLECTOR_QUEUE_SIZE = Integer.getInteger("teamcity.steplistener.collector.queueSize", 8192);
+    private final int COLLECTOR_BATCH_SIZE = Integer.getInteger("teamcity.steplistener.collector.batchSize", 64);
+    private final long COLLECTOR_LINGER = Long.getLong("teamcity.steplistener.collector.linger", 200);
+    private final String COLLECTOR_SPILL_DIRECTORY = System.getProperty("teamcity.steplistener.collector.spill.dir", System.getProperty("java.io.tmpdir"));
+    private final long COLLECTOR_SPILL_SIZE = Long.getLong("teamcity.steplistener.collector.spill.size", 256);
+    private final boolean CHUNKS = Boolean.getBoolean("teamcity.steplistener.chunks");
+    private final int CHUNKS_SIZE = Integer.getInteger("teamcity.steplistener.chunks.size", 64);
+    private final int CHUNKS_POOL = Integer.getInteger("teamcity.steplistener.chunks.pool", 64);
+    private final boolean ASYNC = Boolean.getBoolean("teamcity.steplistener.async");
+    private final int ASYNC_THREADS = Integer.getInteger("teamcity.steplistener.async.threads", 2);
+    private final boolean UNIQUE_NAMES = Boolean.getBoolean("teamcity.steplistener.uniqueNames");
+    private final int UNIQUE_NAMES_CAPACITY = Integer.getInteger("teamcity.steplistener.uniqueNames.capacity", 1 << 18);
+    private final String KNOWN_FAILURES = System.getProperty("teamcity.steplistener.knownFailures");
+    private final int KNOWN_FAILURES_FRAMES = Integer.getInteger("teamcity.steplistener.knownFailures.frames", 3);
+    private final int METRICS_PORT = Integer.getInteger("teamcity.steplistener.metrics.port", -1);
+    private final long WATCHDOG = Long.getLong("teamcity.steplistener.watchdog", 0);
+    private final long WATCHDOG_FAIL = Long.getLong("teamcity.steplistener.watchdog.fail", 0);
+    private final long WATCHDOG_INTERVAL = Long.getLong("teamcity.steplistener.watchdog.interval", 1000);
+    private final boolean FAILURE_CLUSTERS = Boolean.getBoolean("teamcity.steplistener.failureClusters");
+    private final int FAILURE_CLUSTERS_CAPACITY = Integer.getInteger("teamcity.steplistener.failureClusters.capacity", 100);
+    private final int FAILURE_CLUSTERS_FRAMES = Integer.getInteger("teamcity.steplistener.failureClusters.frames", 3);
+    private final int FAILURE_CLUSTERS_TOP = Integer.getInteger("teamcity.steplistener.failureClusters.top", 10);
+    private final String FAILURE_CLUSTERS_REPORT = System.getProperty("teamcity.steplistener.failureClusters.report", "failure-clusters.json");
+    private final String DETAILS_LOG = System.getProperty("teamcity.steplistener.detailsLog.dir");
+    private final int DETAILS_LOG_SEGMENT_SIZE = Integer.getInteger("teamcity.steplistener.detailsLog.segmentSize", 16);
+    private final int DETAILS_LOG_COMPACT = Integer.getInteger("teamcity.steplistener.detailsLog.compact", 2000);
 
     private static final String EMPTY_STRING = "";
 
-    private static final HashMap<String, String> ESCAPE_CHARS = new LinkedHashMap<String, String>() {
-        {
-            put("\\|", "||");
-            put("\'", "|\'");
-            put("\n", "|n");
-            put("\r", "|r");
-            put("\\[", "|[");
-            put("\\]", "|]");
-            put("[", "|[");
-            put("]", "|]");
+    /**
+     * Listeners holding a failed test which may still be retried, reported when the run is finished
+     * if no later callback reports them
+     */
+    private static final Set<TeamCityStepListener> PENDING_ATTEMPTS = Collections.newSetFromMap(
+            new ConcurrentHashMap<TeamCityStepListener, Boolean>());
+    private static boolean pendingAttemptsHookRegistered;
+
+    private final ServiceMessageSink sink;
+    private final ScreenshotPublisher screenshotPublisher;
+    private final StepProfiler stepProfiler;
+    private final OutputBudget outputBudget;
+    private final CircuitBreaker circuitBreaker;
+    private final DurationRecorder durationRecorder;
+    private final ProgressEstimator progressEstimator;
+    private final OutputCapture outputCapture;
+    private final ResourceMeter resourceMeter;
+    private final ChunkPool chunkPool;
+    private final FormatterPool.Flow flow;
+    private final TestNameRegistry testNameRegistry;
+    private final KnownFailureIndex knownFailures;
+    private final ListenerMetrics metrics;
+    private final StepWatchdog watchdog;
+    private final SegmentLog detailsLog;
+    private final FailureClusters failureClusters;
+    private final boolean replay;
+
+    /**
+     * Sink for background workers, their messages are accounted and ordered like the listener's own
+     */
+    private final ServiceMessageSink workerSink = new ServiceMessageSink() {
+        @Override
+        public void print(String message) {
+            TeamCityStepListener.this.print(message);
         }
     };
 
-    private Logger logger;
-
     private Stack<String> suiteStack = new Stack<>();
+    private Stack<Long> suiteStartTimes = new Stack<>();
+    private Stack<ResourceMeter.SuiteUsage> suiteUsages = new Stack<>();
+    private Stack<Class<?>> suiteClasses = new Stack<>();
+
+    private RetryAttempts pendingAttempts;
 
     private Integer examplesTestCount = 0;
     private HashMap<Integer, String> exampleTestNames = new HashMap<>();
 
     public TeamCityStepListener(Logger logger) {
-        this.logger = logger;
+        this(new LoggerSink(logger));
+    }
+
+    public TeamCityStepListener(ServiceMessageSink sink) {
+        this(sink, false);
+    }
+
+    /**
+     * @param replay true to replay stored outcomes: messages are printed before the callback returns,
+     *               failed tests are not held back for retries
+     */
+    TeamCityStepListener(ServiceMessageSink sink, boolean replay) {
+        this.replay = replay;
+        if (RETRIES && !replay) {
+            // registered before the hooks of the formatter pool and sinks, so they still get the flushed attempts
+            registerPendingAttemptsHook();
+        }
+        FormatterPool formatterPool = ASYNC && !replay
+                ? FormatterPool.getInstance(ASYNC_THREADS)
+                : null;
+        this.sink = COLLECTOR != null
+                ? new TeeSink(sink, CollectorSink.getInstance(sink, COLLECTOR, COLLECTOR_QUEUE_SIZE, COLLECTOR_BATCH_SIZE * 1024,
+                COLLECTOR_LINGER, COLLECTOR_COMPRESS, new File(COLLECTOR_SPILL_DIRECTORY), COLLECTOR_SPILL_SIZE * 1024 * 1024))
+                : sink;
+        this.flow = formatterPool != null
+                ? formatterPool.newFlow(this.sink, FLOW_ID)
+                : null;
+        this.screenshotPublisher = SCREENSHOTS_DIRECTORY != null
+                ? ScreenshotPublisher.getInstance(new File(SCREENSHOTS_DIRECTORY), SCREENSHOTS_QUEUE_SIZE)
+                : null;
+        this.stepProfiler = STEP_PROFILER
+                ? StepProfiler.getInstance(this.sink, STEP_PROFILER_TOP, new File(STEP_PROFILER_REPORT))
+                : null;
+        this.outputBudget = OUTPUT_BUDGET > 0 || OUTPUT_BUDGET_FAILURE_RATE > 0
+                ? OutputBudget.getInstance(this.sink, OUTPUT_BUDGET, OUTPUT_BUDGET_FAILURE_RATE, OUTPUT_BUDGET_MIN_TESTS)
+                : null;
+        this.circuitBreaker = CIRCUIT_BREAKER_WINDOW > 0
+                ? CircuitBreaker.getInstance(CIRCUIT_BREAKER_WINDOW, CIRCUIT_BREAKER_THRESHOLD)
+                : null;
+        this.durationRecorder = DURATIONS_DIRECTORY != null
+                ? DurationRecorder.getInstance(new File(DURATIONS_DIRECTORY), this.sink)
+                : null;
+        this.progressEstimator = PROGRESS_DURATIONS != null
+                ? ProgressEstimator.getInstance(this.sink, new File(PROGRESS_DURATIONS), PROGRESS_FORKS, PROGRESS_INTERVAL)
+                : null;
+        this.outputCapture = CAPTURE
+                ? OutputCapture.getInstance(CAPTURE_SIZE * 1024)
+                : null;
+        this.resourceMeter = RESOURCES != null && !ResourceMeter.parse(RESOURCES).isEmpty()
+                ? new ResourceMeter(ResourceMeter.parse(RESOURCES))
+                : null;
+        this.testNameRegistry = UNIQUE_NAMES
+                ? TestNameRegistry.getInstance(UNIQUE_NAMES_CAPACITY)
+                : null;
+        this.knownFailures = KNOWN_FAILURES != null
+                ? KnownFailureIndex.getInstance(this.sink, new File(KNOWN_FAILURES), KNOWN_FAILURES_FRAMES)
+                : null;
+        this.metrics = METRICS_PORT >= 0
+                ? ListenerMetrics.getInstance(this.sink, METRICS_PORT)
+                : null;
+        this.watchdog = WATCHDOG > 0
+                ? StepWatchdog.getInstance(this.sink, FLOW_ID, WATCHDOG, WATCHDOG_FAIL, WATCHDOG_INTERVAL)
+                : null;
+        this.detailsLog = DETAILS_LOG != null
+                ? SegmentLog.getInstance(this.sink, new File(DETAILS_LOG), DETAILS_LOG_SEGMENT_SIZE * 1024 * 1024)
+                : null;
+        this.failureClusters = FAILURE_CLUSTERS
+                ? FailureClusters.getInstance(this.sink, FAILURE_CLUSTERS_CAPACITY, FAILURE_CLUSTERS_FRAMES,
+                FAILURE_CLUSTERS_TOP, new File(FAILURE_CLUSTERS_REPORT))
+                : null;
+        this.chunkPool = CHUNKS && this.sink instanceof ChunkedMessageSink
+                ? ChunkPool.getInstance(this.sink, CHUNKS_SIZE * 1024, CHUNKS_POOL)
+                : null;
+        if (ESCAPE_CACHE_STATS) {
+            ServiceMessages.reportEscapeCache(this.sink);
+        }
     }
 
     private String currentTestSuiteName = EMPTY_STRING;
 
     public TeamCityStepListener() {
-        this(LoggerFactory.getLogger(TeamCityStepListener.class));
+        this(Boolean.getBoolean("teamcity.steplistener.stdout")
+                ? new StdoutSink()
+                : new LoggerSink(LoggerFactory.getLogger(TeamCityStepListener.class)));
     }
 
-    private String escapeProperty(String value) {
-        for (Map.Entry<String, String> escapeChar : ESCAPE_CHARS.entrySet()) {
-            value = value.replace(escapeChar.getKey(), escapeChar.getValue());
-        }
-        return value;
+    private String formatMessage(String messageName, Map<String, String> properties) {
+        return formatMessage(messageName, properties, null);
     }
 
-    private void printMessage(String messageName, Map<String, String> properties) {
-        StringBuilder propertiesBuilder = new StringBuilder();
+    private String formatMessage(String messageName, Map<String, String> properties, String escapedKey) {
         if (FLOW_ID != null) {
             properties.put("flowId", FLOW_ID);
         }
-        for (Map.Entry<String, String> property : properties.entrySet()) {
-            propertiesBuilder.append(
-                    String.format(
-                            PROPERTY_TEMPLATE,
-                            property.getKey(),
-                            escapeProperty(property.getValue())
-                    )
-            );
-        }
-        String message = String.format(MESSAGE_TEMPLATE, messageName, propertiesBuilder.toString());
-        logger.info(message);
+        Object event = EVENTS.beginMessage();
+        String message = ServiceMessages.format(messageName, properties, escapedKey);
+        EVENTS.endMessage(event, messageName, message);
+        return message;
     }
 
-    private void printMessage(String messageName, String description, Long duration) {
+    private String formatMessage(String messageName, String description, Long duration) {
         Map<String, String> properties = new HashMap<>();
         properties.put("name", description);
         properties.put("duration", duration.toString());
-        printMessage(messageName, properties);
+        return formatMessage(messageName, properties);
     }
 
-    private void printMessage(String messageName, String description) {
+    private String formatMessage(String messageName, String description) {
         Map<String, String> properties = new HashMap<>();
         properties.put("name", description);
-        printMessage(messageName, properties);
+        return formatMessage(messageName, properties);
+    }
+
+    /**
+     * Messages printed on the test thread are queued behind the outcomes still being formatted
+     */
+    private void print(final String message) {
+        if (flow != null && !flow.isCurrent()) {
+            flow.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(message);
+                }
+            });
+            return;
+        }
+        write(message);
+    }
+
+    private void write(String message) {
+        Object event = EVENTS.beginSinkWrite();
+        sink.print(message);
+        EVENTS.endSinkWrite(event, message);
+        if (outputBudget != null || metrics != null) {
+            int size = ListenerEvents.getEncodedSize(message);
+            if (outputBudget != null) {
+                outputBudget.recordBytes(size);
+            }
+            if (metrics != null) {
+                metrics.recordMessage(size);
+            }
+        }
+    }
+
+    /**
+     * Prints a message whose last attribute is rendered straight into pooled direct chunks
+     */
+    private void printChunked(String messageName, Map<String, String> properties, String streamedName,
+                              ChunkedMessage.Content content) {
+        if (FLOW_ID != null) {
+            properties.put("flowId", FLOW_ID);
+        }
+        ChunkedMessage message = new ChunkedMessage(chunkPool);
+        try {
+            Object messageEvent = EVENTS.beginMessage();
+            ServiceMessages.format(message, messageName, properties, streamedName, content);
+            EVENTS.endMessage(messageEvent, messageName, message.length());
+            Object writeEvent = EVENTS.beginSinkWrite();
+            ((ChunkedMessageSink) sink).print(message);
+            EVENTS.endSinkWrite(writeEvent, message.length());
+            if (outputBudget != null) {
+                outputBudget.recordBytes(message.length());
+            }
+            if (metrics != null) {
+                metrics.recordMessage(message.length());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            message.release();
+        }
+    }
+
+    private void printMessage(String messageName, Map<String, String> properties) {
+        print(formatMessage(messageName, properties));
+    }
+
+    private void printMessage(String messageName, Map<String, String> properties, String escapedKey) {
+        print(formatMessage(messageName, properties, escapedKey));
+    }
+
+    private void printMessage(String messageName, String description, Long duration) {
+        print(formatMessage(messageName, description, duration));
+    }
+
+    private void printMessage(String messageName, String description) {
+        print(formatMessage(messageName, description));
     }
 
     @Override
     public void testSuiteStarted(Class<?> storyClass) {
-        String storyClassName = storyClass.getName();
-        if (!currentTestSuiteName.equals(storyClassName)) {
-            suiteStack.push(storyClassName);
-            printTestSuiteStarted(storyClassName);
-            currentTestSuiteName = storyClassName;
+        Object event = EVENTS.beginCallback("testSuiteStarted");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            flushPendingAttempts();
+            String storyClassName = storyClass.getName();
+            if (!currentTestSuiteName.equals(storyClassName)) {
+                suiteStack.push(storyClassName);
+                suiteClasses.push(storyClass);
+                suiteStartTimes.push(System.currentTimeMillis());
+                suiteUsages.push(resourceMeter != null ? new ResourceMeter.SuiteUsage(RESOURCES_TOP) : null);
+                if (metrics != null) {
+                    metrics.suiteStarted();
+                }
+                printTestSuiteStarted(storyClassName);
+                currentTestSuiteName = storyClassName;
+            }
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
         }
     }
 
     @Override
     public void testSuiteStarted(Story story) {
-        String storyName = story.getName();
-        suiteStack.push(storyName);
-        printTestSuiteStarted(storyName);
+        Object event = EVENTS.beginCallback("testSuiteStarted");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            flushPendingAttempts();
+            String storyName = story.getName();
+            suiteStack.push(storyName);
+            suiteClasses.push(null);
+            suiteStartTimes.push(System.currentTimeMillis());
+            suiteUsages.push(resourceMeter != null ? new ResourceMeter.SuiteUsage(RESOURCES_TOP) : null);
+            if (metrics != null) {
+                metrics.suiteStarted();
+            }
+            printTestSuiteStarted(storyName);
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
+        }
     }
 
     @Override
     public void testSuiteFinished() {
-        if (!suiteStack.empty()) {
-            String suiteName = suiteStack.pop();
-            printTestSuiteFinished(suiteName);
+        Object event = EVENTS.beginCallback("testSuiteFinished");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            flushPendingAttempts();
+            if (!suiteStack.empty()) {
+                String suiteName = suiteStack.pop();
+                Class<?> suiteClass = suiteClasses.pop();
+                long suiteStartTime = suiteStartTimes.pop();
+                ResourceMeter.SuiteUsage suiteUsage = suiteUsages.pop();
+                if (metrics != null) {
+                    metrics.suiteFinished();
+                }
+                String usage = suiteUsage != null ? suiteUsage.describe(suiteName) : null;
+                if (usage != null) {
+                    Map<String, String> properties = new LinkedHashMap<>();
+                    properties.put("text", usage);
+                    printMessage("message", properties);
+                }
+                printTestSuiteFinished(suiteName);
+                if (detailsLog != null) {
+                    try {
+                        detailsLog.seal();
+                    } catch (IOException e) {
+                        printWarning("Can't seal details log segment: " + e.getMessage());
+                    }
+                    for (File segment : detailsLog.pollSealed()) {
+                        print(SegmentLog.formatPublishArtifacts(segment));
+                    }
+                }
+                if (durationRecorder != null) {
+                    durationRecorder.recordSuite(DurationRecorder.getSuite(suiteClass, suiteName),
+                            System.currentTimeMillis() - suiteStartTime);
+                }
+            }
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
         }
     }
 
     @Override
     public void testStarted(String description) {
+        Object event = EVENTS.beginCallback("testStarted");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            if (pendingAttempts != null && !pendingAttempts.isRetried()) {
+                flushPendingAttempts();
+            }
+            if (outputCapture != null) {
+                outputCapture.start();
+            }
+            if (resourceMeter != null) {
+                resourceMeter.start();
+            }
+            if (watchdog != null) {
+                watchdog.testStarted();
+            }
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
+        }
     }
 
     @Override
     public void testFinished(TestOutcome result) {
-        if (result.isDataDriven()) {
-            printExampleResults(result);
-        } else {
-            printTestStarted(result);
-            if (result.isFailure() || result.isError()) {
-                printFailure(result);
-            } else if (result.isSkipped() || result.isPending()) {
-                printTestIgnored(result);
+        Object event = EVENTS.beginCallback("testFinished");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            long[] resources = resourceMeter != null ? resourceMeter.stop() : null;
+            OutputCapture.Captured output = outputCapture != null
+                    ? outputCapture.stop(!result.isDataDriven() && (isFailed(result) || CAPTURE_PASSED))
+                    : null;
+            if (resources != null && !suiteUsages.empty() && suiteUsages.peek() != null) {
+                suiteUsages.peek().add(getResultTitle(result), resources);
+            }
+            if (stepProfiler != null) {
+                stepProfiler.record(result.getTestSteps());
+            }
+            String suiteName = getDurationSuite(result);
+            if (durationRecorder != null) {
+                durationRecorder.recordTest(suiteName, result.getMethodName(), result.getDuration());
+            }
+            if (circuitBreaker != null) {
+                String cause = circuitBreaker.record(result);
+                if (cause != null) {
+                    print(circuitBreaker.formatBuildProblem(cause));
+                }
+            }
+            if (result.isDataDriven()) {
+                printExampleResults(result);
+            } else {
+                TestAttachments attachments = TestAttachments.of(output, resources);
+                OutcomeSnapshot snapshot = OutcomeSnapshot.of(result, getUniqueTitle(getResultTitle(result), getOrigin(result)),
+                        getTestOutComeTestFailureCauseMessage(result.getTestFailureCause()), screenshotPublisher != null);
+                String hungStep = watchdog != null ? watchdog.pollHungStep() : null;
+                if (hungStep != null && !snapshot.isFailed()) {
+                    snapshot = snapshot.failedWith(hungStep);
+                }
+                if (RETRIES && !replay) {
+                    recordAttempt(snapshot, attachments);
+                } else {
+                    printTestResult(snapshot, null, attachments);
+                }
+                examplesTestCount = 0;
+                exampleTestNames.clear();
+            }
+            if (progressEstimator != null) {
+                String progress = progressEstimator.record(suiteName, result.getMethodName(), System.currentTimeMillis());
+                if (progress != null) {
+                    print(ServiceMessages.format("progressMessage", progress));
+                }
             }
-            printTestFinished(result);
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, event != null ? getResultTitle(result) : null);
         }
     }
 
+    /**
+     * Adds the time of a callback to the time test threads spent in the listener
+     */
+    private void recordListenerTime(long started) {
+        if (metrics != null) {
+            metrics.recordListenerTime(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * @return suite of the test as recorded in durations: its test class or the current suite
+     */
+    private String getDurationSuite(TestOutcome result) {
+        if (result.getTestCase() != null) {
+            return DurationRecorder.getSuite(result.getTestCase(), result.getTestCase().getName());
+        }
+        if (suiteStack.empty()) {
+            return EMPTY_STRING;
+        }
+        return DurationRecorder.getSuite(suiteClasses.peek(), suiteStack.peek());
+    }
+
+    /**
+     * Waits until outcomes handed off to the formatter pool are printed
+     *
+     * @return true if they were printed before timeout
+     */
+    boolean awaitFormatted(long timeoutMillis) {
+        return flow == null || flow.await(timeoutMillis);
+    }
+
+    int getOpenSuiteCount() {
+        return suiteStack.size();
+    }
+
+    int getPendingExampleCount() {
+        return exampleTestNames.size();
+    }
+
     @Override
     public void testRetried() {
+        if (pendingAttempts != null) {
+            pendingAttempts.setRetried();
+        }
+    }
+
+    /**
+     * In the async mode the snapshot is formatted by the formatter pool and the test thread returns at once
+     */
+    private void printTestResult(final OutcomeSnapshot result, final RetryAttempts attempts, final TestAttachments attachments) {
+        if (flow != null && !flow.isCurrent()) {
+            flow.execute(new Runnable() {
+                @Override
+                public void run() {
+                    renderTestResult(result, attempts, attachments);
+                }
+            });
+            return;
+        }
+        renderTestResult(result, attempts, attachments);
+    }
+
+    private void renderTestResult(OutcomeSnapshot result, RetryAttempts attempts, TestAttachments attachments) {
+        OutputBudget.Tier tier = recordTests(1, result.isFailed() ? 1 : 0);
+        if (metrics != null) {
+            metrics.recordTest(result.isFailed(), result.isIgnored(), result.getDuration());
+        }
+        printTestStarted(result.getTitle());
+        try {
+            renderTestDetails(result, attempts, attachments, tier);
+        } catch (RuntimeException e) {
+            // the started test is still finished, otherwise the build log keeps it running
+            printWarning("Can't render result of " + result.getTitle() + ": " + e);
+        }
+        printTestFinished(result.getTitle(), result.getDuration());
+        publishScreenshots(result.getTitle(), result.getScreenshots());
+    }
+
+    private void renderTestDetails(OutcomeSnapshot result, RetryAttempts attempts, TestAttachments attachments,
+                                   OutputBudget.Tier tier) {
+        if (result.isFailed() && failureClusters != null) {
+            failureClusters.record(result.getTitle(), result.getFailureMessage(), result.getSteps());
+        }
+        if (result.isFailed() && knownFailures != null) {
+            long signature = knownFailures.signature(result);
+            long firstSeen = knownFailures.getFirstSeen(result.getTitle(), signature);
+            knownFailures.recordFailure(result.getTitle(), signature);
+            if (firstSeen >= 0 && (tier == OutputBudget.Tier.FULL || tier == OutputBudget.Tier.FILTERED_TRACES)) {
+                printKnownFailure(result, signature, firstSeen);
+            } else {
+                printFailure(result, tier);
+            }
+        } else if (result.isFailed()) {
+            printFailure(result, tier);
+        } else if (result.isIgnored()) {
+            printTestIgnored(result.getTitle());
+        }
+        if (attempts != null && attempts.getCount() > 1) {
+            printAttempts(attempts);
+        }
+        if (attachments != null) {
+            printAttachments(result.getTitle(), attachments);
+        }
+        if (!result.isFailed() && !result.isIgnored() && knownFailures != null) {
+            knownFailures.recordPassed(result.getTitle());
+        }
+    }
+
+    private boolean isFailed(TestOutcome result) {
+        return result.isFailure() || result.isError();
+    }
+
+    /**
+     * Failed tests are held back until it's known whether Thucydides retries them,
+     * so only the final attempt is rendered in full
+     */
+    private synchronized void recordAttempt(OutcomeSnapshot result, TestAttachments attachments) {
+        String testName = result.getTitle();
+        if (pendingAttempts != null && !(pendingAttempts.isRetried() && pendingAttempts.getTestName().equals(testName))) {
+            flushPendingAttempts();
+        }
+        if (pendingAttempts == null) {
+            if (!result.isFailed()) {
+                printTestResult(result, null, attachments);
+                return;
+            }
+            pendingAttempts = new RetryAttempts(testName);
+            PENDING_ATTEMPTS.add(this);
+        }
+        OutcomeSnapshot previousOutcome = pendingAttempts.getLastOutcome();
+        String previousDetails = RETRIES_DETAILS && previousOutcome != null ? getStepsInfo(previousOutcome.getSteps()) : null;
+        pendingAttempts.add(result, previousDetails, attachments);
+        if (!result.isFailed()) {
+            flushPendingAttempts();
+        }
     }
 
-    private void printFailure(TestOutcome result) {
+    private synchronized void flushPendingAttempts() {
+        if (pendingAttempts != null) {
+            RetryAttempts attempts = pendingAttempts;
+            pendingAttempts = null;
+            PENDING_ATTEMPTS.remove(this);
+            printTestResult(attempts.getLastOutcome(), attempts, attempts.getLastAttachments());
+        }
+    }
+
+    private static synchronized void registerPendingAttemptsHook() {
+        if (!pendingAttemptsHookRegistered) {
+            RunFinishedHooks.register(new Runnable() {
+                @Override
+                public void run() {
+                    flushAllPendingAttempts();
+                }
+            });
+            pendingAttemptsHookRegistered = true;
+        }
+    }
+
+    /**
+     * Reports failed tests of all listeners which were held for a retry that never came
+     */
+    static void flushAllPendingAttempts() {
+        for (TeamCityStepListener listener : PENDING_ATTEMPTS) {
+            listener.flushPendingAttempts();
+        }
+    }
+
+    private void printAttempts(RetryAttempts attempts) {
+        printTestMetadata(attempts.getTestName(), "attempts", "number", String.valueOf(attempts.getCount()));
+        printTestMetadata(attempts.getTestName(), "attemptDurations", "text", attempts.getDurations());
+        List<String> earlierDetails = attempts.getEarlierDetails();
+        for (int i = 0; i < earlierDetails.size(); i++) {
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("name", attempts.getTestName());
+            properties.put("out", String.format("Attempt %d (%d ms) %s", i + 1, attempts.getDuration(i), earlierDetails.get(i)));
+            printMessage("testStdErr", properties);
+        }
+    }
+
+    private void printAttachments(String testName, TestAttachments attachments) {
+        long[] resources = attachments.getResources();
+        if (resources != null) {
+            for (ResourceMeter.Metric metric : ResourceMeter.Metric.values()) {
+                if (resources[metric.ordinal()] >= 0) {
+                    printTestMetadata(testName, metric.getMetadataName(), "number", String.valueOf(resources[metric.ordinal()]));
+                }
+            }
+        }
+        OutputCapture.Captured output = attachments.getOutput();
+        if (output == null) {
+            return;
+        }
+        if (output.getOut() != null) {
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("name", testName);
+            properties.put("out", output.getOut());
+            printMessage("testStdOut", properties);
+        }
+        if (output.getErr() != null) {
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("name", testName);
+            properties.put("out", output.getErr());
+            printMessage("testStdErr", properties);
+        }
+    }
+
+    private void printTestMetadata(String testName, String name, String type, String value) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("testName", testName);
+        properties.put("name", name);
+        properties.put("type", type);
+        properties.put("value", value);
+        printMessage("testMetadata", properties);
+    }
+
+    private void printFailure(final OutcomeSnapshot result, OutputBudget.Tier tier) {
         HashMap<String, String> properties = new HashMap<>();
-        properties.put("name", getResultTitle(result));
-        properties.put("message", getTestOutComeTestFailureCauseMessage(result.getTestFailureCause()));
-        properties.put("details", getStepsInfo(result.getTestSteps()));
+        properties.put("name", result.getTitle());
+        String message = result.getFailureMessage();
+        if (detailsLog != null && (tier == OutputBudget.Tier.FULL || tier == OutputBudget.Tier.FILTERED_TRACES)) {
+            properties.put("message", OutputBudget.getFirstLine(message));
+            properties.put("details", getCompactDetails(result, message));
+            printMessage("testFailed", properties);
+            return;
+        }
+        if (chunkPool != null && (tier == OutputBudget.Tier.FULL || tier == OutputBudget.Tier.FILTERED_TRACES)) {
+            Map<String, String> chunkedProperties = new LinkedHashMap<>();
+            chunkedProperties.put("name", properties.get("name"));
+            chunkedProperties.put("message", message);
+            final boolean filterStackTraces = tier == OutputBudget.Tier.FILTERED_TRACES;
+            printChunked("testFailed", chunkedProperties, "details", new ChunkedMessage.Content() {
+                @Override
+                public void appendTo(Appendable out) throws IOException {
+                    appendStepsInfo(out, result.getSteps(), filterStackTraces);
+                }
+            });
+            return;
+        }
+        switch (tier) {
+            case FULL:
+                properties.put("message", message);
+                properties.put("details", getEscapedStepsInfo(result.getSteps(), false));
+                break;
+            case FILTERED_TRACES:
+                properties.put("message", message);
+                properties.put("details", getEscapedStepsInfo(result.getSteps(), true));
+                break;
+            case FIRST_LINE:
+                properties.put("message", OutputBudget.getFirstLine(message));
+                break;
+            default:
+                break;
+        }
+        printMessage("testFailed", properties, "details");
+    }
+
+    /**
+     * Writes full details to the details log and returns filtered and truncated details referencing them
+     */
+    private String getCompactDetails(OutcomeSnapshot result, String message) {
+        String reference;
+        try {
+            reference = detailsLog.append(result.getTitle(), message + "\n" + getStepsInfo(result.getSteps()));
+        } catch (IOException e) {
+            printWarning("Can't write failure details to the details log: " + e.getMessage());
+            reference = null;
+        }
+        String details = getStepsInfo(result.getSteps(), true);
+        if (details.length() > DETAILS_LOG_COMPACT) {
+            details = details.substring(0, DETAILS_LOG_COMPACT) + "\r\n...";
+        }
+        return reference != null ? details + "\r\nFull details: " + reference : details;
+    }
+
+    /**
+     * Failure which repeats unchanged since a previous build is reported without details
+     */
+    private void printKnownFailure(OutcomeSnapshot result, long signature, long firstSeen) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("name", result.getTitle());
+        properties.put("message", OutputBudget.getFirstLine(result.getFailureMessage()));
+        properties.put("details", "Known failure " + Long.toHexString(signature) + " repeating unchanged since "
+                + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(firstSeen))
+                + ", full details are reported when it changes");
         printMessage("testFailed", properties);
     }
 
+    /**
+     * Counts finished tests against the output budget and reports a tier transition
+     *
+     * @return tier to render the tests with
+     */
+    private OutputBudget.Tier recordTests(int count, int failed) {
+        if (outputBudget == null) {
+            return OutputBudget.Tier.FULL;
+        }
+        outputBudget.recordTests(count, failed);
+        OutputBudget.Tier newTier = outputBudget.advance();
+        if (newTier != null) {
+            printWarning(outputBudget.describeTransition(newTier));
+        }
+        return outputBudget.getTier();
+    }
+
     private String getTestOutComeTestFailureCauseMessage(FailureCause failureCause) {
         if (failureCause != null && failureCause.getMessage() != null) {
             return failureCause.getMessage();
@@ -157,43 +790,172 @@ public class TeamCityStepListener implements StepListener {
 
     private void printExampleResults(TestOutcome result) {
         List<TestStep> testSteps = result.getTestSteps();
+        List<TestStep> examples = new ArrayList<>();
+        List<String> testNames = new ArrayList<>();
         int number = 0;
-        for (int i = 0; i < testSteps.size(); i++) {
-            if (isExample(testSteps.get(i))) {
-                List<TestStep> childrenTestSteps = result.getTestSteps().get(i).getChildren();
-                String testName = getResultTitle(result, exampleTestNames.get(number));
-                Long duration = sum(childrenTestSteps, on(TestStep.class).getDuration());
-                printTestStarted(testName);
-                if (hasFailureStep(childrenTestSteps)) {
-                    String getStepsInfo = getStepsInfo(childrenTestSteps);
-                    HashMap<String, String> properties = new HashMap<>();
-                    properties.put("name", testName);
-                    properties.put("details", getStepsInfo);
-                    printMessage("testFailed", properties);
-                } else if (hasPendingStep(childrenTestSteps)) {
-                    printTestIgnored(testName);
-                }
-                printTestFinished(testName, duration);
+        for (TestStep testStep : testSteps) {
+            if (isExample(testStep)) {
+                examples.add(testStep);
+                testNames.add(getUniqueTitle(getResultTitle(result, exampleTestNames.get(number)), getOrigin(result) + "#" + number));
                 number++;
             }
         }
+        int failed = 0;
+        for (TestStep example : examples) {
+            if (hasFailureStep(example.getChildren())) {
+                failed++;
+            }
+        }
+        OutputBudget.Tier tier = recordTests(examples.size(), failed);
+        if (PARALLEL_EXAMPLES_THRESHOLD > 0 && examples.size() >= PARALLEL_EXAMPLES_THRESHOLD) {
+            for (List<String> chunk : ExampleRenderer.renderInParallel(this, examples, testNames, tier)) {
+                for (String message : chunk) {
+                    print(message);
+                }
+            }
+        } else {
+            List<String> messages = new ArrayList<>();
+            for (int i = 0; i < examples.size(); i++) {
+                renderExample(examples.get(i), testNames.get(i), tier, messages);
+                for (String message : messages) {
+                    print(message);
+                }
+                messages.clear();
+            }
+        }
+        if (screenshotPublisher != null) {
+            for (int i = 0; i < examples.size(); i++) {
+                List<File> screenshots = new ArrayList<>();
+                OutcomeSnapshot.collectScreenshots(examples.get(i).getChildren(), screenshots);
+                publishScreenshots(testNames.get(i), screenshots);
+            }
+        }
         examplesTestCount = 0;
         exampleTestNames.clear();
     }
 
+    private void publishScreenshots(final String testName, final List<File> screenshots) {
+        if (screenshotPublisher == null) {
+            return;
+        }
+        if (flow != null && !flow.isCurrent()) {
+            flow.execute(new Runnable() {
+                @Override
+                public void run() {
+                    screenshotPublisher.publish(testName, screenshots, workerSink, FLOW_ID);
+                }
+            });
+            return;
+        }
+        screenshotPublisher.publish(testName, screenshots, workerSink, FLOW_ID);
+    }
+
+    void renderExample(TestStep example, String testName, OutputBudget.Tier tier, List<String> messages) {
+        List<TestStep> childrenTestSteps = example.getChildren();
+        long duration = 0;
+        for (TestStep childTestStep : childrenTestSteps) {
+            duration += childTestStep.getDuration();
+        }
+        messages.add(formatMessage("testStarted", testName));
+        boolean failed = hasFailureStep(childrenTestSteps);
+        if (metrics != null) {
+            metrics.recordTest(failed, !failed && hasPendingStep(childrenTestSteps), duration);
+        }
+        if (failed) {
+            HashMap<String, String> properties = new HashMap<>();
+            properties.put("name", testName);
+            List<OutcomeSnapshot.StepRecord> steps = null;
+            if (tier == OutputBudget.Tier.FULL || tier == OutputBudget.Tier.FILTERED_TRACES || failureClusters != null) {
+                steps = new ArrayList<>();
+                OutcomeSnapshot.flatten(childrenTestSteps, 0, steps);
+            }
+            if (failureClusters != null) {
+                failureClusters.record(testName, null, steps);
+            }
+            if (tier == OutputBudget.Tier.FULL || tier == OutputBudget.Tier.FILTERED_TRACES) {
+                properties.put("details", getEscapedStepsInfo(steps, tier == OutputBudget.Tier.FILTERED_TRACES));
+            }
+            messages.add(formatMessage("testFailed", properties, "details"));
+        } else if (hasPendingStep(childrenTestSteps)) {
+            messages.add(formatMessage("testIgnored", testName));
+        }
+        messages.add(formatMessage("testFinished", testName, duration));
+    }
+
     private boolean isExample(TestStep testStep) {
         return testStep.isAGroup() && testStep.getDescription().startsWith("[");
     }
 
-    private String getStepsInfo(List<TestStep> testSteps) {
-        StringBuilder builder = new StringBuilder("Steps:\r\n");
-        for (TestStep testStep : testSteps) {
-            String stepMessage = String.format("%s (%s) -> %s\r\n", testStep.getDescription(), testStep.getDurationInSeconds(), getResultMessage(testStep));
-            builder.append(stepMessage);
+    private String getStepsInfo(List<OutcomeSnapshot.StepRecord> steps) {
+        return getStepsInfo(steps, false);
+    }
+
+    private String getStepsInfo(List<OutcomeSnapshot.StepRecord> steps, boolean filterStackTraces) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            appendStepsInfo(builder, steps, filterStackTraces, false, 0, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
         }
         return builder.toString();
     }
 
+    /**
+     * Renders steps escaped as a service message value. Step descriptions and stack traces are escaped
+     * one by one, so descriptions repeating across failures are found in the escape cache
+     */
+    private String getEscapedStepsInfo(List<OutcomeSnapshot.StepRecord> steps, boolean filterStackTraces) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            appendStepsInfo(builder, steps, filterStackTraces, true, 0, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Renders steps one by one, so large step trees can be streamed without building them as a string
+     */
+    private void appendStepsInfo(Appendable out, List<OutcomeSnapshot.StepRecord> steps, boolean filterStackTraces) throws IOException {
+        appendStepsInfo(out, steps, filterStackTraces, false, 0, 0);
+    }
+
+    /**
+     * Renders steps of the given depth starting from the index, children of failed groups follow their group.
+     * Escaped fragments concatenate to the escaped whole as none of them ends with a backslash escaping the next one
+     *
+     * @return index of the first step which is not rendered
+     */
+    private int appendStepsInfo(Appendable out, List<OutcomeSnapshot.StepRecord> steps, boolean filterStackTraces,
+                                boolean escaped, int index, int depth) throws IOException {
+        String lineBreak = escaped ? "|r|n" : "\r\n";
+        out.append("Steps:").append(lineBreak);
+        while (index < steps.size() && steps.get(index).getDepth() == depth) {
+            OutcomeSnapshot.StepRecord step = steps.get(index++);
+            out.append(escaped ? ServiceMessages.escape(step.getDescription()) : step.getDescription())
+                    .append(" (").append(String.valueOf(step.getDurationInSeconds())).append(") -> ")
+                    .append(step.getResult());
+            if (step.isFailed()) {
+                out.append(lineBreak);
+                if (step.isGroup()) {
+                    out.append("Children ");
+                    index = appendStepsInfo(out, steps, filterStackTraces, escaped, index, depth + 1);
+                } else {
+                    String exceptionCauseStackTrace = step.getThrowable() != null
+                            ? getStackTrace(step.getThrowable())
+                            : EMPTY_STRING;
+                    if (filterStackTraces) {
+                        exceptionCauseStackTrace = OutputBudget.filterStackTrace(exceptionCauseStackTrace);
+                    }
+                    out.append(escaped ? ServiceMessages.escape(exceptionCauseStackTrace) : exceptionCauseStackTrace);
+                }
+            }
+            out.append(lineBreak);
+        }
+        return index;
+    }
+
     private Boolean hasFailureStep(List<TestStep> testSteps) {
         for (TestStep testStep : testSteps) {
             if (testStep.isError() || testStep.isFailure()) {
@@ -212,25 +974,6 @@ public class TeamCityStepListener implements StepListener {
         return false;
     }
 
-    private String getResultMessage(TestStep testStep) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(testStep.getResult().toString());
-        if (testStep.isFailure() || testStep.isError()) {
-            String exceptionCauseStackTrace;
-            if (testStep.isAGroup()) {
-                exceptionCauseStackTrace = "Children " + getStepsInfo(testStep.getChildren());
-            } else {
-                exceptionCauseStackTrace = testStep.getException() != null
-                        ? getStackTrace(testStep.getException().toException())
-                        : EMPTY_STRING;
-            }
-            builder.append(
-                    String.format("\r\n%s", exceptionCauseStackTrace)
-            );
-        }
-        return builder.toString();
-    }
-
     protected String getStackTrace(Throwable throwable) {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new PrintWriter(sw);
@@ -250,6 +993,39 @@ public class TeamCityStepListener implements StepListener {
         return title + "." + result.getMethodName().replace(".", "_");
     }
 
+    /**
+     * Story path and method, distinct tests can still get the same title from {@link #getResultTitle}
+     */
+    private String getOrigin(TestOutcome result) {
+        return result.getPath() + "#" + result.getMethodName();
+    }
+
+    /**
+     * Checks the title against titles of other tests in the run and adds a stable suffix
+     * if another test is reported with it already
+     */
+    private String getUniqueTitle(String title, String origin) {
+        if (testNameRegistry == null) {
+            return title;
+        }
+        String uniqueTitle = testNameRegistry.register(title, origin);
+        if (!uniqueTitle.equals(title) && testNameRegistry.markReported(origin)) {
+            printWarning("Test name " + title + " is already used by another test, " + origin + " is reported as " + uniqueTitle);
+        }
+        if (testNameRegistry.markFullReported()) {
+            printWarning("Test name collisions are not checked after " + testNameRegistry.size()
+                    + " names, increase teamcity.steplistener.uniqueNames.capacity");
+        }
+        return uniqueTitle;
+    }
+
+    private void printWarning(String text) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("text", text);
+        properties.put("status", "WARNING");
+        printMessage("message", properties);
+    }
+
     private String getResultTitle(TestOutcome result, String name) {
         String title = getResultTitle(result);
         title = title + "." + name.replace(".", "_");
@@ -260,22 +1036,10 @@ public class TeamCityStepListener implements StepListener {
         printMessage("testStarted", name);
     }
 
-    private void printTestStarted(TestOutcome result) {
-        printMessage("testStarted", getResultTitle(result));
-    }
-
-    private void printTestIgnored(TestOutcome result) {
-        printMessage("testIgnored", getResultTitle(result));
-    }
-
     private void printTestIgnored(String name) {
         printMessage("testIgnored", name);
     }
 
-    private void printTestFinished(TestOutcome result) {
-        printMessage("testFinished", getResultTitle(result), result.getDuration());
-    }
-
     private void printTestFinished(String name, Long duration) {
         printMessage("testFinished", name, duration);
     }
@@ -306,14 +1070,38 @@ public class TeamCityStepListener implements StepListener {
 
     @Override
     public void stepStarted(ExecutedStepDescription description) {
+        Object event = EVENTS.beginCallback("stepStarted");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            if (watchdog != null) {
+                watchdog.stepStarted(description.getTitle());
+            }
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
+        }
     }
 
+    /**
+     * Thucydides ends a skipped step with stepIgnored, so it's pushed like a started one
+     */
     @Override
     public void skippedStepStarted(ExecutedStepDescription description) {
+        Object event = EVENTS.beginCallback("skippedStepStarted");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            if (watchdog != null) {
+                watchdog.stepStarted(description.getTitle());
+            }
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
+        }
     }
 
     @Override
     public void stepFailed(StepFailure failure) {
+        stepEnded("stepFailed");
     }
 
     @Override
@@ -322,18 +1110,35 @@ public class TeamCityStepListener implements StepListener {
 
     @Override
     public void stepIgnored() {
+        stepEnded("stepIgnored");
     }
 
     @Override
     public void stepPending() {
+        stepEnded("stepPending");
     }
 
     @Override
     public void stepPending(String message) {
+        stepEnded("stepPending");
     }
 
     @Override
     public void stepFinished() {
+        stepEnded("stepFinished");
+    }
+
+    private void stepEnded(String callback) {
+        Object event = EVENTS.beginCallback(callback);
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            if (watchdog != null) {
+                watchdog.stepFinished();
+            }
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
+        }
     }
 
     @Override
@@ -346,8 +1151,15 @@ public class TeamCityStepListener implements StepListener {
 
     @Override
     public void exampleStarted(Map<String, String> data) {
-        exampleTestNames.put(examplesTestCount, data.toString());
-        examplesTestCount++;
+        Object event = EVENTS.beginCallback("exampleStarted");
+        long started = metrics != null ? System.nanoTime() : 0;
+        try {
+            exampleTestNames.put(examplesTestCount, data.toString());
+            examplesTestCount++;
+        } finally {
+            recordListenerTime(started);
+            EVENTS.endCallback(event, null);
+        }
     }
 
     @Override
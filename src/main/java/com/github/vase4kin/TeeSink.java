@@ -0,0 +1,22 @@
+package com.github.vase4kin;
+
+/**
+ * Prints service messages to two sinks, the second one usually being a remote collector.
+ * Doesn't take chunked messages, so chunk mode stays off while messages are teed.
+ */
+class TeeSink implements ServiceMessageSink {
+
+    private final ServiceMessageSink first;
+    private final ServiceMessageSink second;
+
+    TeeSink(ServiceMessageSink first, ServiceMessageSink second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void print(String message) {
+        first.print(message);
+        second.print(message);
+    }
+}
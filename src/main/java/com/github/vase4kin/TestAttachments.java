@@ -0,0 +1,36 @@
+package com.github.vase4kin;
+
+/**
+ * Data measured or captured while a test ran, reported inside the test
+ */
+class TestAttachments {
+
+    private final OutputCapture.Captured output;
+    private final long[] resources;
+
+    private TestAttachments(OutputCapture.Captured output, long[] resources) {
+        this.output = output;
+        this.resources = resources;
+    }
+
+    /**
+     * @return attachments or null if there is nothing to attach
+     */
+    static TestAttachments of(OutputCapture.Captured output, long[] resources) {
+        return output != null || resources != null ? new TestAttachments(output, resources) : null;
+    }
+
+    /**
+     * @return captured output or null
+     */
+    OutputCapture.Captured getOutput() {
+        return output;
+    }
+
+    /**
+     * @return used resources indexed by {@link ResourceMeter.Metric} ordinal or null
+     */
+    long[] getResources() {
+        return resources;
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.vase4kin;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Run-wide registry of reported TeamCity test names which detects distinct tests collapsed into
+ * the same name, TeamCity would merge their results silently. Names are kept as 64-bit hashes
+ * in a lock-free open-addressing table: every slot holds the name hash, an independent check hash
+ * of the name, so different names with the same hash aren't taken for a collision, and the hash
+ * of the test origin (story path and method). 24 bytes per name, no strings are kept except
+ * for detected collisions.
+ */
+class TestNameRegistry {
+
+    private static final long EMPTY = 0;
+    private static final int SLOT_LONGS = 3;
+    private static final int MAX_SUFFIXES = 4;
+
+    private static TestNameRegistry instance;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final int maxSize;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean full = new AtomicBoolean();
+    private final AtomicBoolean fullReported = new AtomicBoolean();
+    private final ConcurrentMap<String, String> collisions = new ConcurrentHashMap<>();
+    private final Set<String> reported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param capacity number of names registered before the registry stops checking
+     */
+    TestNameRegistry(int capacity) {
+        int slotCount = Integer.highestOneBit(Math.max(2, capacity + capacity / 3) - 1) << 1;
+        this.slots = new AtomicLongArray(slotCount * SLOT_LONGS);
+        this.mask = slotCount - 1;
+        this.maxSize = capacity;
+    }
+
+    static synchronized TestNameRegistry getInstance(int capacity) {
+        if (instance == null) {
+            instance = new TestNameRegistry(capacity);
+        }
+        return instance;
+    }
+
+    /**
+     * Registers the name of a test, the same test may be registered again
+     *
+     * @param origin identity of the test, e.g. story path and method name
+     * @return the name, or the name with a suffix derived from the origin if it's used by another test
+     */
+    String register(String name, String origin) {
+        long originHash = DurationIndex.hash(origin);
+        String candidate = name;
+        for (int i = 0; i < MAX_SUFFIXES; i++) {
+            long registered = claim(DurationIndex.hash(candidate), checkHash(candidate), originHash);
+            if (registered == EMPTY || registered == originHash) {
+                return candidate;
+            }
+            candidate = candidate + "~" + Long.toHexString(originHash >>> 32);
+            collisions.put(origin, candidate);
+        }
+        return candidate;
+    }
+
+    /**
+     * @return suffixed names of tests which collided with other tests, by test origin
+     */
+    ConcurrentMap<String, String> getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * @return true the first time it's called for the origin, so a collision is reported once
+     */
+    boolean markReported(String origin) {
+        return reported.add(origin);
+    }
+
+    /**
+     * @return true the first time it's called after the capacity is exceeded
+     */
+    boolean markFullReported() {
+        return full.get() && fullReported.compareAndSet(false, true);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return true once the capacity is exceeded, new names are not checked anymore
+     */
+    boolean isFull() {
+        return full.get();
+    }
+
+    /**
+     * Finds the name or claims an empty slot for it
+     *
+     * @return origin hash of the test registered with the name or EMPTY if the name is new
+     * or can't be registered
+     */
+    private long claim(long nameHash, long checkHash, long originHash) {
+        int slot = (int) (nameHash ^ (nameHash >>> 32)) & mask;
+        for (int probe = 0; probe <= mask; probe++, slot = (slot + 1) & mask) {
+            int index = slot * SLOT_LONGS;
+            long current = slots.get(index);
+            if (current == EMPTY) {
+                if (size.get() >= maxSize) {
+                    full.set(true);
+                    return EMPTY;
+                }
+                if (!slots.compareAndSet(index, EMPTY, nameHash)) {
+                    current = slots.get(index);
+                } else {
+                    size.incrementAndGet();
+                    slots.set(index + 1, checkHash);
+                    // the origin is written last, readers wait for it to see a complete slot
+                    slots.set(index + 2, originHash);
+                    return EMPTY;
+                }
+            }
+            if (current == nameHash) {
+                long registeredOrigin;
+                while ((registeredOrigin = slots.get(index + 2)) == EMPTY) {
+                    Thread.yield();
+                }
+                if (slots.get(index + 1) == checkHash) {
+                    return registeredOrigin;
+                }
+            }
+        }
+        full.set(true);
+        return EMPTY;
+    }
+
+    /**
+     * 64-bit hash independent of {@link DurationIndex#hash}, never 0
+     */
+    static long checkHash(String value) {
+        long hash = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0xbf58476d1ce4e5b9L;
+            hash ^= hash >>> 31;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.vase4kin;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder backed listener events. All events are disabled by default
+ * and are enabled with the bundled teamcity-steplistener.jfc settings.
+ */
+class FlightRecorderEvents extends ListenerEvents {
+
+    static final String CALLBACK_EVENT = "com.github.vase4kin.ListenerCallback";
+    static final String MESSAGE_EVENT = "com.github.vase4kin.MessageEncoding";
+    static final String SINK_WRITE_EVENT = "com.github.vase4kin.SinkWrite";
+
+    @Override
+    Object beginCallback(String callback) {
+        CallbackEvent event = new CallbackEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.callback = callback;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endCallback(Object event, String testName) {
+        if (event != null) {
+            CallbackEvent callbackEvent = (CallbackEvent) event;
+            callbackEvent.end();
+            if (callbackEvent.shouldCommit()) {
+                callbackEvent.testName = testName;
+                callbackEvent.commit();
+            }
+        }
+    }
+
+    @Override
+    Object beginMessage() {
+        MessageEvent event = new MessageEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endMessage(Object event, String messageName, String message) {
+        if (event != null) {
+            MessageEvent messageEvent = (MessageEvent) event;
+            messageEvent.end();
+            if (messageEvent.shouldCommit()) {
+                messageEvent.messageName = messageName;
+                messageEvent.size = getEncodedSize(message);
+                messageEvent.commit();
+            }
+        }
+    }
+
+    @Override
+    void endMessage(Object event, String messageName, long size) {
+        if (event != null) {
+            MessageEvent messageEvent = (MessageEvent) event;
+            messageEvent.end();
+            if (messageEvent.shouldCommit()) {
+                messageEvent.messageName = messageName;
+                messageEvent.size = size;
+                messageEvent.commit();
+            }
+        }
+    }
+
+    @Override
+    Object beginSinkWrite() {
+        SinkWriteEvent event = new SinkWriteEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endSinkWrite(Object event, String message) {
+        if (event != null) {
+            SinkWriteEvent sinkWriteEvent = (SinkWriteEvent) event;
+            sinkWriteEvent.end();
+            if (sinkWriteEvent.shouldCommit()) {
+                sinkWriteEvent.size = getEncodedSize(message);
+                sinkWriteEvent.commit();
+            }
+        }
+    }
+
+    @Override
+    void endSinkWrite(Object event, long size) {
+        if (event != null) {
+            SinkWriteEvent sinkWriteEvent = (SinkWriteEvent) event;
+            sinkWriteEvent.end();
+            if (sinkWriteEvent.shouldCommit()) {
+                sinkWriteEvent.size = size;
+                sinkWriteEvent.commit();
+            }
+        }
+    }
+
+    @Name(CALLBACK_EVENT)
+    @Label("Listener Callback")
+    @Description("Thucydides step listener callback handled by TeamCity step listener")
+    @Category({"TeamCity StepListener"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class CallbackEvent extends Event {
+
+        @Label("Callback")
+        String callback;
+
+        @Label("Test Name")
+        String testName;
+    }
+
+    @Name(MESSAGE_EVENT)
+    @Label("Message Encoding")
+    @Description("Formatting and escaping of a TeamCity service message")
+    @Category({"TeamCity StepListener"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class MessageEvent extends Event {
+
+        @Label("Message Name")
+        String messageName;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name(SINK_WRITE_EVENT)
+    @Label("Sink Write")
+    @Description("Write of a TeamCity service message to the build log")
+    @Category({"TeamCity StepListener"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class SinkWriteEvent extends Event {
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.vase4kin;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Summarizes time spent in the TeamCity step listener per test from a JFR recording.
+ * Usage: FlightRecordingAnalyzer &lt;recording.jfr&gt; [number of tests]
+ * or FlightRecordingAnalyzer --settings [file] to extract the bundled recording settings,
+ * JFR reads settings from the file system only.
+ */
+public class FlightRecordingAnalyzer {
+
+    static final String SETTINGS = "teamcity-steplistener.jfc";
+
+    private static final int DEFAULT_TOP = 20;
+
+    private final Map<String, long[]> callbacksByTest = new HashMap<>();
+    private final Map<String, long[]> callbacksByName = new TreeMap<>();
+    private final Map<String, long[]> messagesByName = new TreeMap<>();
+    private long sinkWrites;
+    private long sinkWriteNanos;
+    private long sinkWriteBytes;
+
+    void analyze(File recording) throws IOException {
+        try (RecordingFile file = new RecordingFile(recording.toPath())) {
+            while (file.hasMoreEvents()) {
+                add(file.readEvent());
+            }
+        }
+    }
+
+    private void add(RecordedEvent event) {
+        String name = event.getEventType().getName();
+        long nanos = event.getDuration().toNanos();
+        if (FlightRecorderEvents.CALLBACK_EVENT.equals(name)) {
+            String testName = event.getString("testName");
+            if (testName != null) {
+                add(callbacksByTest, testName, nanos, 0);
+            }
+            add(callbacksByName, event.getString("callback"), nanos, 0);
+        } else if (FlightRecorderEvents.MESSAGE_EVENT.equals(name)) {
+            add(messagesByName, event.getString("messageName"), nanos, event.getLong("size"));
+        } else if (FlightRecorderEvents.SINK_WRITE_EVENT.equals(name)) {
+            sinkWrites++;
+            sinkWriteNanos += nanos;
+            sinkWriteBytes += event.getLong("size");
+        }
+    }
+
+    private static void add(Map<String, long[]> totals, String key, long nanos, long bytes) {
+        long[] total = totals.get(key);
+        if (total == null) {
+            total = new long[3];
+            totals.put(key, total);
+        }
+        total[0]++;
+        total[1] += nanos;
+        total[2] += bytes;
+    }
+
+    void print(StringBuilder out, int top) {
+        out.append(String.format("Callbacks:%n"));
+        for (Map.Entry<String, long[]> callback : callbacksByName.entrySet()) {
+            out.append(String.format("  %-24s count=%d total=%.3f ms%n", callback.getKey(), callback.getValue()[0], callback.getValue()[1] / 1e6));
+        }
+        out.append(String.format("Messages:%n"));
+        for (Map.Entry<String, long[]> message : messagesByName.entrySet()) {
+            out.append(String.format("  %-24s count=%d total=%.3f ms bytes=%d%n", message.getKey(), message.getValue()[0], message.getValue()[1] / 1e6, message.getValue()[2]));
+        }
+        out.append(String.format("Sink writes: count=%d total=%.3f ms bytes=%d%n", sinkWrites, sinkWriteNanos / 1e6, sinkWriteBytes));
+        List<Map.Entry<String, long[]>> tests = new ArrayList<>(callbacksByTest.entrySet());
+        Collections.sort(tests, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> first, Map.Entry<String, long[]> second) {
+                return Long.compare(second.getValue()[1], first.getValue()[1]);
+            }
+        });
+        out.append(String.format("Listener time per test (top %d of %d):%n", Math.min(top, tests.size()), tests.size()));
+        for (Map.Entry<String, long[]> test : tests.subList(0, Math.min(top, tests.size()))) {
+            out.append(String.format("  %10.3f ms  %s%n", test.getValue()[1] / 1e6, test.getKey()));
+        }
+    }
+
+    /**
+     * Writes the bundled settings which enable listener events to the file
+     */
+    static void extractSettings(File target) throws IOException {
+        try (InputStream settings = FlightRecordingAnalyzer.class.getResourceAsStream("/" + SETTINGS)) {
+            if (settings == null) {
+                throw new FileNotFoundException(SETTINGS + " is not found on the classpath");
+            }
+            File parent = target.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            Files.copy(settings, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: FlightRecordingAnalyzer <recording.jfr> [number of tests]");
+            System.err.println("       FlightRecordingAnalyzer --settings [file]");
+            System.exit(2);
+        }
+        if (args[0].equals("--settings")) {
+            File target = new File(args.length > 1 ? args[1] : SETTINGS);
+            extractSettings(target);
+            System.out.println("Settings are written to " + target.getAbsolutePath());
+            return;
+        }
+        FlightRecordingAnalyzer analyzer = new FlightRecordingAnalyzer();
+        analyzer.analyze(new File(args[0]));
+        StringBuilder out = new StringBuilder();
+        analyzer.print(out, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TOP);
+        System.out.print(out);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test rendering messages into pooled direct chunks
+ */
+public class ChunkedMessageTest {
+
+    private final ChunkPool pool = new ChunkPool(16, 2);
+
+    @Test
+    public void testEscapingMatchesEscapeValueAcrossAppends() {
+
+        Random random = new Random(42);
+        String alphabet = "ab\\|'[]\n\ré中";
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder value = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            ChunkedMessage message = new ChunkedMessage(pool);
+            message.append("x='").startEscaped();
+            int split = value.length() > 0 ? random.nextInt(value.length()) : 0;
+            message.append(value, 0, split).append(value, split, value.length());
+            message.endEscaped().append('\'');
+
+            String expected = "x='" + ServiceMessages.escapeValue(value.toString()) + "'";
+            assertThat(message.toString(), is(expected));
+            assertThat(message.length(), is((long) expected.getBytes(ChunkedMessage.UTF_8).length));
+            message.release();
+        }
+    }
+
+    @Test
+    public void testSupplementaryCharactersAreEncoded() {
+
+        ChunkedMessage message = new ChunkedMessage(pool);
+        message.append("emoji 😀 lone \ud83d end");
+
+        assertThat(message.toString(), is(new String("emoji 😀 lone \ud83d end".getBytes(ChunkedMessage.UTF_8), ChunkedMessage.UTF_8)));
+        message.release();
+    }
+
+    @Test
+    public void testChunksAreReturnedToThePool() {
+
+        ChunkedMessage message = new ChunkedMessage(pool);
+        message.append("0123456789abcdef0123456789abcdef0123456789abcdef");
+        ByteBuffer[] buffers = message.getBuffers();
+
+        assertThat(buffers.length, is(3));
+        assertThat(buffers[0].isDirect(), is(true));
+        assertThat(pool.getInUse(), is(3));
+
+        message.release();
+        ChunkedMessage next = new ChunkedMessage(pool);
+        next.append("0123456789abcdef0123456789abcdef");
+        next.release();
+
+        assertThat(pool.getAllocated(), is(3L));
+        assertThat(pool.getAcquired(), is(5L));
+        assertThat(pool.getPeakInUse(), is(3));
+        assertThat(pool.getInUse(), is(0));
+    }
+}
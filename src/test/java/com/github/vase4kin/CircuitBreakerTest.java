@@ -0,0 +1,101 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.FailureCause;
+import net.thucydides.core.model.TestOutcome;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class to test the circuit breaker on systemic failures
+ */
+public class CircuitBreakerTest {
+
+    @After
+    public void after() {
+        System.clearProperty(CircuitBreaker.OPEN_PROPERTY);
+    }
+
+    @Test
+    public void testBreakerTripsWhenOneCauseDominatesTheWindow() {
+
+        CircuitBreaker breaker = new CircuitBreaker(10, 80);
+
+        for (int i = 0; i < 7; i++) {
+            assertThat(breaker.record(getFailedOutcome("Timed out after 30 seconds waiting for element 'login" + i + "'")), is(nullValue()));
+        }
+        assertThat(breaker.record(getOutcome(false, null)), is(nullValue()));
+        assertThat(breaker.record(getFailedOutcome("Timed out after 30 seconds waiting for element 'login8'")), is(nullValue()));
+        assertThat(breaker.record(getFailedOutcome("Timed out after 30 seconds waiting for element 'login9'")), is(
+                "org.openqa.selenium.TimeoutException: Timed out after # seconds waiting for element '*'"));
+
+        assertTrue(breaker.isTripped());
+        assertThat(System.getProperty(CircuitBreaker.OPEN_PROPERTY), is("true"));
+        assertThat(breaker.formatBuildProblem(breaker.getTrippedCause()), startsWith("##teamcity[buildProblem  description='Circuit breaker: 9 of the last 10 tests failed with " +
+                "org.openqa.selenium.TimeoutException: Timed out after # seconds waiting for element |'*|'' identity='circuitBreaker"));
+        assertThat(breaker.record(getFailedOutcome("Timed out after 30 seconds waiting for element 'login10'")), is(nullValue()));
+    }
+
+    @Test
+    public void testBreakerDoesNotTripOnDifferentCauses() {
+
+        CircuitBreaker breaker = new CircuitBreaker(10, 50);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(breaker.record(getFailedOutcome(i % 2 == 0 ? "expected title" : "element is not visible")), is(nullValue()));
+            assertThat(breaker.record(getOutcome(false, null)), is(nullValue()));
+        }
+        assertThat(breaker.isTripped(), is(false));
+    }
+
+    @Test
+    public void testBreakerTripsOnceUnderParallelExecution() throws InterruptedException {
+
+        final CircuitBreaker breaker = new CircuitBreaker(100, 90);
+        final TestOutcome outcome = getFailedOutcome("Connection refused");
+        final AtomicInteger trips = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (breaker.record(outcome) != null) {
+                            trips.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertThat(trips.get(), is(1));
+    }
+
+    private TestOutcome getFailedOutcome(String message) {
+        FailureCause failureCause = mock(FailureCause.class);
+        when(failureCause.getErrorType()).thenReturn("org.openqa.selenium.TimeoutException");
+        when(failureCause.getMessage()).thenReturn(message + "\nBuild info: version: '2.42.2'");
+        return getOutcome(true, failureCause);
+    }
+
+    private TestOutcome getOutcome(boolean failed, FailureCause failureCause) {
+        TestOutcome outcome = mock(TestOutcome.class);
+        when(outcome.isFailure()).thenReturn(failed);
+        when(outcome.getTestFailureCause()).thenReturn(failureCause);
+        return outcome;
+    }
+}
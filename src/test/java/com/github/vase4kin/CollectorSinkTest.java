@@ -0,0 +1,98 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test sending service messages to a collector
+ */
+public class CollectorSinkTest {
+
+    private static final String FIRST = "##teamcity[testStarted  name='first']";
+    private static final String SECOND = "##teamcity[testFinished  name='first' duration='1']";
+
+    @Test
+    public void testMessagesAreSentInBatches() throws IOException, InterruptedException {
+
+        try (LocalCollector collector = new LocalCollector(0)) {
+            CollectorSink sink = new CollectorSink(new InetSocketAddress("127.0.0.1", collector.getPort()),
+                    16, 1024, 20, true, null, 0);
+            sink.print(FIRST);
+            sink.print(SECOND);
+
+            assertThat(sink.close(5000), is(true));
+            assertThat(collector.awaitMessages(2, 5000), is(true));
+            assertThat(collector.getMessages(), is(Arrays.asList(FIRST, SECOND)));
+            assertThat(sink.getSentCount(), is(2L));
+        }
+    }
+
+    @Test
+    public void testMessagesAreSpilledUntilCollectorIsReachable() throws IOException, InterruptedException {
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        File spillFile = File.createTempFile("collector", ".bin");
+        CollectorSink sink = new CollectorSink(new InetSocketAddress("127.0.0.1", port),
+                16, 1024, 20, false, spillFile, 1024 * 1024);
+        sink.print(FIRST);
+        assertThat(sink.flush(200), is(false));
+
+        try (LocalCollector collector = new LocalCollector(port)) {
+            sink.print(SECOND);
+
+            assertThat(sink.flush(15000), is(true));
+            assertThat(sink.close(5000), is(true));
+            assertThat(collector.awaitMessages(2, 5000), is(true));
+            assertThat(collector.getMessages(), is(Arrays.asList(FIRST, SECOND)));
+            assertThat(sink.getDroppedCount(), is(0L));
+        }
+        assertThat(spillFile.exists(), is(false));
+    }
+
+    @Test
+    public void testMessagesAreDroppedWithoutSpillFile() throws IOException {
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        CollectorSink sink = new CollectorSink(new InetSocketAddress("127.0.0.1", port),
+                16, 1024, 20, false, null, 0);
+        sink.print(FIRST);
+
+        assertThat(sink.close(5000), is(true));
+        assertThat(sink.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void testCloseDoesNotWaitForSpilledMessages() throws IOException {
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        File spillFile = File.createTempFile("collector", ".bin");
+        CollectorSink sink = new CollectorSink(new InetSocketAddress("127.0.0.1", port),
+                16, 1024, 20, false, spillFile, 1024 * 1024);
+        sink.print(FIRST);
+        sink.print(SECOND);
+
+        long started = System.currentTimeMillis();
+        assertThat(sink.close(3000), is(false));
+        assertThat(System.currentTimeMillis() - started, lessThan(5000L));
+        assertThat(sink.getDroppedCount(), is(2L));
+        assertThat(spillFile.exists(), is(false));
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test escaping of service message values and the escape cache
+ */
+public class EscapeCacheTest {
+
+    private static final Map<String, String> ESCAPE_CHARS = new LinkedHashMap<String, String>() {
+        {
+            put("\\|", "||");
+            put("\'", "|\'");
+            put("\n", "|n");
+            put("\r", "|r");
+            put("\\[", "|[");
+            put("\\]", "|]");
+            put("[", "|[");
+            put("]", "|]");
+        }
+    };
+
+    @Test
+    public void testSinglePassEscapingIsTheSameAsSequentialReplacing() {
+
+        Random random = new Random(42);
+        String alphabet = "\\|'\n\r[]a ";
+        for (int i = 0; i < 100000; i++) {
+            char[] chars = new char[random.nextInt(12)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            String value = new String(chars);
+            assertThat(value, ServiceMessages.escapeValue(value), is(replaceSequentially(value)));
+        }
+    }
+
+    @Test
+    public void testValueWithoutSpecialCharactersIsNotCopied() {
+        String value = "Given the user is logged in";
+        assertThat(ServiceMessages.escapeValue(value), is(sameInstance(value)));
+    }
+
+    @Test
+    public void testRepeatedValuesAreServedFromCache() {
+
+        EscapeCache cache = new EscapeCache(16, 32);
+
+        String escaped = cache.escape("open page 'about'");
+        assertThat(escaped, is("open page |'about|'"));
+        assertThat(cache.escape("open page 'about'"), is(sameInstance(escaped)));
+        assertThat(cache.escape(new String("open page 'about'")), is(sameInstance(escaped)));
+        assertThat(cache.escape("a value longer than thirty two chars ['x']"), is("a value longer than thirty two chars |[|'x|'|]"));
+
+        assertThat(cache.getHits(), is(2L));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getHitRate(), is(66L));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+
+        EscapeCache cache = new EscapeCache(4, 32);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(cache.escape("step [" + i + "]"), is("step |[" + i + "|]"));
+        }
+        assertThat(cache.getMisses(), is(1000L));
+    }
+
+    private static String replaceSequentially(String value) {
+        for (Map.Entry<String, String> escapeChar : ESCAPE_CHARS.entrySet()) {
+            value = value.replace(escapeChar.getKey(), escapeChar.getValue());
+        }
+        return value;
+    }
+}
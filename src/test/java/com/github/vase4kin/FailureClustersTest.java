@@ -0,0 +1,127 @@
+package com.github.vase4kin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test clustering of failures
+ */
+public class FailureClustersTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIdsNumbersAndQuotedValuesAreNormalized() {
+        assertThat(FailureClusters.normalize("Order 9f86d081-884c-7d65 not found at 2024-01-02 10:15:00\nmore"),
+                is("Order # not found at # #:#:#"));
+        assertThat(FailureClusters.normalize("Element 'login button' is not visible"), is("Element '*' is not visible"));
+        assertThat(FailureClusters.normalize("deadbeef and feedbacks stay words"), is("deadbeef and feedbacks stay words"));
+    }
+
+    @Test
+    public void testApostrophesDoNotMergeDifferentFailures() {
+
+        assertThat(FailureClusters.normalize("Can't click element 'login'"), is("Can't click element '*'"));
+        assertThat(FailureClusters.normalize("Can't type into element 'login'"), is("Can't type into element '*'"));
+
+        FailureClusters clusters = new FailureClusters(10, 0);
+        clusters.record("first", "Can't click element 'login'", new ArrayList<OutcomeSnapshot.StepRecord>());
+        clusters.record("second", "Can't type into element 'login'", new ArrayList<OutcomeSnapshot.StepRecord>());
+        clusters.record("third", "Can't click element 'search'", new ArrayList<OutcomeSnapshot.StepRecord>());
+
+        List<FailureClusters.Cluster> ranked = clusters.getClusters();
+        assertThat(ranked.size(), is(2));
+        assertThat(ranked.get(0).getSignature(), is("Can't click element '*'"));
+        assertThat(ranked.get(0).getCount(), is(2L));
+    }
+
+    @Test
+    public void testFailuresWithTheSameCauseAreClustered() {
+
+        FailureClusters clusters = new FailureClusters(10, 1);
+        AssertionError first = new AssertionError("expected 1 but was 2");
+        first.setStackTrace(new StackTraceElement[]{new StackTraceElement("LoginSteps", "login", "LoginSteps.java", 10)});
+        AssertionError second = new AssertionError("expected 3 but was 4");
+        second.setStackTrace(new StackTraceElement[]{new StackTraceElement("LoginSteps", "login", "LoginSteps.java", 12)});
+
+        clusters.record("first", null, steps(first));
+        clusters.record("second", null, steps(second));
+        clusters.record("third", "Timeout after 30 s", new ArrayList<OutcomeSnapshot.StepRecord>());
+
+        List<FailureClusters.Cluster> ranked = clusters.getClusters();
+        assertThat(ranked.size(), is(2));
+        assertThat(ranked.get(0).getSignature(), is("java.lang.AssertionError: expected # but was #\n\tat LoginSteps.login"));
+        assertThat(ranked.get(0).getCount(), is(2L));
+        assertThat(ranked.get(0).getExamples(), is(Arrays.asList("first", "second")));
+        assertThat(ranked.get(1).getSignature(), is("Timeout after # s"));
+    }
+
+    @Test
+    public void testSmallestClusterIsReplacedWhenFull() {
+
+        FailureClusters clusters = new FailureClusters(2, 0);
+        for (int i = 0; i < 5; i++) {
+            clusters.record("frequent " + i, "frequent");
+        }
+        clusters.record("rare", "rare");
+        clusters.record("other", "other");
+
+        List<FailureClusters.Cluster> ranked = clusters.getClusters();
+        assertThat(ranked.size(), is(2));
+        assertThat(ranked.get(0).getSignature(), is("frequent"));
+        assertThat(ranked.get(0).getCount(), is(5L));
+        assertThat(ranked.get(0).getExamples().size(), is(FailureClusters.MAX_EXAMPLES));
+        assertThat(ranked.get(1).getSignature(), is("other"));
+        assertThat(ranked.get(1).getCount(), is(2L));
+        assertThat(ranked.get(1).getError(), is(1L));
+        assertThat(clusters.getFailures(), is(7L));
+        assertThat(clusters.describe(ranked, 2), is("7 failures in 2 clusters\n1. 5 x frequent (e.g. frequent 0, frequent 1, frequent 2)"
+                + "\n2. 2 (up to 1 overcounted) x other (e.g. other)"));
+    }
+
+    @Test
+    public void testRankedSummaryAndJsonReport() throws IOException {
+
+        FailureClusters clusters = new FailureClusters(10, 0);
+        clusters.record("first", "Broken \"quote\"");
+        clusters.record("second", "Broken \"quote\"");
+        clusters.record("third", "Other");
+        final List<String> messages = new ArrayList<>();
+        File report = new File(folder.getRoot(), "reports/clusters.json");
+
+        clusters.report(new ServiceMessageSink() {
+            @Override
+            public void print(String message) {
+                messages.add(message);
+            }
+        }, 1, report);
+
+        assertThat(messages.size(), is(2));
+        assertThat(messages.get(0), is("##teamcity[message  text='3 failures in 2 clusters|n1. 2 x Broken \"quote\" (e.g. first, second)']"));
+        assertThat(messages.get(1), containsString("publishArtifacts"));
+        String json = new String(Files.readAllBytes(report.toPath()), "UTF-8");
+        assertThat(json, is("{\"failures\":3,\"clusters\":[\n" +
+                "{\"signature\":\"Broken \\\"quote\\\"\",\"count\":2,\"maxOvercount\":0,\"examples\":[\"first\",\"second\"]},\n" +
+                "{\"signature\":\"Other\",\"count\":1,\"maxOvercount\":0,\"examples\":[\"third\"]}\n" +
+                "]}\n"));
+    }
+
+    private static List<OutcomeSnapshot.StepRecord> steps(Throwable throwable) {
+        List<OutcomeSnapshot.StepRecord> steps = new ArrayList<>();
+        steps.add(new OutcomeSnapshot.StepRecord(0, "Login", 1.0, "FAILURE", true, false, throwable));
+        return steps;
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test formatting service messages off the test threads
+ */
+public class FormatterPoolTest {
+
+    @Test
+    public void testFailedTaskIsReportedAndLaterTasksRun() {
+
+        final List<String> messages = new CopyOnWriteArrayList<>();
+        ServiceMessageSink sink = new ServiceMessageSink() {
+            @Override
+            public void print(String message) {
+                messages.add(message);
+            }
+        };
+        FormatterPool pool = new FormatterPool(2);
+        FormatterPool.Flow flow = pool.newFlow(sink, "7");
+
+        flow.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Broken step");
+            }
+        });
+        flow.execute(new Runnable() {
+            @Override
+            public void run() {
+                messages.add("next");
+            }
+        });
+
+        assertThat(flow.await(5000), is(true));
+        assertThat(messages, is(Arrays.asList(
+                "##teamcity[message  text='Can|'t format service messages: java.lang.IllegalStateException: Broken step' status='WARNING' flowId='7']",
+                "next")));
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.TestOutcome;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test the cross-build index of known failures
+ */
+public class KnownFailureIndexTest {
+
+    @Test
+    public void testSignatureIgnoresMessagesAndLineNumbers() throws IOException {
+
+        KnownFailureIndex index = new KnownFailureIndex(newIndexFile(), 3);
+
+        long first = index.signature(getFailedSnapshot(new AssertionError("expected 1")));
+        long second = index.signature(getFailedSnapshot(new AssertionError("expected 2")));
+        long other = index.signature(getFailedSnapshot(new IllegalStateException("expected 1")));
+
+        assertThat(first, is(second));
+        assertThat(first, is(not(other)));
+    }
+
+    @Test
+    public void testFailuresOfPreviousBuildsAreKnown() throws IOException {
+
+        File file = newIndexFile();
+        KnownFailureIndex previous = new KnownFailureIndex(file, 3);
+        previous.recordFailure("story.first", 42);
+        previous.recordFailure("story.second", 43);
+        previous.update();
+
+        KnownFailureIndex current = new KnownFailureIndex(file, 3);
+        assertThat(current.getFirstSeen("story.first", 42), greaterThan(0L));
+        assertThat(current.getFirstSeen("story.first", 43), is(-1L));
+        assertThat(current.getFirstSeen("story.third", 42), is(-1L));
+
+        current.recordPassed("story.first");
+        current.recordPassed("story.third");
+        current.update();
+
+        KnownFailureIndex next = new KnownFailureIndex(file, 3);
+        assertThat(next.getFirstSeen("story.first", 42), is(-1L));
+        assertThat(next.getFirstSeen("story.second", 43), greaterThan(0L));
+    }
+
+    @Test
+    public void testIndexGrowsWhenFull() throws IOException {
+
+        File file = newIndexFile();
+        for (int build = 0; build < 3; build++) {
+            KnownFailureIndex index = new KnownFailureIndex(file, 3);
+            for (int i = 0; i < 1000; i++) {
+                index.recordFailure("story.scenario" + (build * 1000 + i), i + 1);
+            }
+            index.update();
+        }
+
+        KnownFailureIndex index = new KnownFailureIndex(file, 3);
+        for (int i = 0; i < 3000; i++) {
+            assertThat(index.getFirstSeen("story.scenario" + i, i % 1000 + 1), greaterThan(0L));
+        }
+    }
+
+    private File newIndexFile() throws IOException {
+        File file = File.createTempFile("known-failures", ".idx");
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + ".lock").deleteOnExit();
+        return file;
+    }
+
+    private OutcomeSnapshot getFailedSnapshot(Throwable throwable) {
+        TestOutcome testOutcome = new TestOutcome("failedScenario");
+        testOutcome.recordStep(TestStepFactory.getErrorTestStepWithThrowable("Failed step", throwable));
+        return OutcomeSnapshot.of(testOutcome, "story.failedScenario", "", false);
+    }
+}
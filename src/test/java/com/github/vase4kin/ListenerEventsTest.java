@@ -0,0 +1,42 @@
+package com.github.vase4kin;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test recording of the listener activity
+ */
+public class ListenerEventsTest {
+
+    @After
+    public void after() {
+        System.clearProperty("teamcity.steplistener.jfr");
+    }
+
+    @Test
+    public void testEncodedSizeIsCountedInUtf8Bytes() {
+        assertThat(ListenerEvents.getEncodedSize("a"), is(1));
+        assertThat(ListenerEvents.getEncodedSize("é"), is(2));
+        assertThat(ListenerEvents.getEncodedSize("€"), is(3));
+        assertThat(ListenerEvents.getEncodedSize("😀"), is(4));
+        assertThat(ListenerEvents.getEncodedSize("aé€😀"), is(10));
+    }
+
+    @Test
+    public void testEventsAreNotRecordedWhenDisabled() {
+
+        System.setProperty("teamcity.steplistener.jfr", "false");
+
+        ListenerEvents events = ListenerEvents.load();
+        Object event = events.beginCallback("testStarted");
+        events.endCallback(event, "test");
+
+        assertThat(event, is(nullValue()));
+        assertThat(events.beginMessage(), is(nullValue()));
+        assertThat(events.beginSinkWrite(), is(nullValue()));
+    }
+}
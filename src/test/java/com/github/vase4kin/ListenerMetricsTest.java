@@ -0,0 +1,73 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test the live metrics endpoint
+ */
+public class ListenerMetricsTest {
+
+    @Test
+    public void testMetricsAreRenderedInPrometheusFormat() {
+
+        ListenerMetrics metrics = new ListenerMetrics();
+        metrics.suiteStarted();
+        metrics.recordTest(false, false, 50);
+        metrics.recordTest(true, false, 2000);
+        metrics.recordTest(false, true, 0);
+        metrics.recordMessage(100);
+
+        String text = metrics.render();
+
+        assertThat(text, containsString("teamcity_steplistener_tests_total{status=\"passed\"} 1\n"));
+        assertThat(text, containsString("teamcity_steplistener_tests_total{status=\"failed\"} 1\n"));
+        assertThat(text, containsString("teamcity_steplistener_tests_total{status=\"ignored\"} 1\n"));
+        assertThat(text, containsString("teamcity_steplistener_open_suites 1\n"));
+        assertThat(text, containsString("teamcity_steplistener_test_duration_seconds_bucket{le=\"0.01\"} 1\n"));
+        assertThat(text, containsString("teamcity_steplistener_test_duration_seconds_bucket{le=\"0.1\"} 2\n"));
+        assertThat(text, containsString("teamcity_steplistener_test_duration_seconds_bucket{le=\"10.0\"} 3\n"));
+        assertThat(text, containsString("teamcity_steplistener_test_duration_seconds_sum 2.05\n"));
+        assertThat(text, containsString("teamcity_steplistener_message_bytes_total 100\n"));
+        assertThat(text, not(containsString("# EOF")));
+    }
+
+    @Test
+    public void testMetricsAreServedOnLocalhost() throws IOException {
+
+        ListenerMetrics metrics = new ListenerMetrics();
+        int port = metrics.start(0);
+        try {
+            metrics.recordTest(false, false, 10);
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + ListenerMetrics.PATH).openConnection();
+
+            assertThat(connection.getResponseCode(), is(200));
+            assertThat(connection.getContentType(), is("text/plain; version=0.0.4; charset=utf-8"));
+            assertThat(read(connection.getInputStream()), containsString("teamcity_steplistener_tests_total{status=\"passed\"} 1\n"));
+        } finally {
+            metrics.stop();
+        }
+    }
+
+    private String read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+    }
+}
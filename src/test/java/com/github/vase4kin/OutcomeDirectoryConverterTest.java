@@ -0,0 +1,155 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+/**
+ * Test class to test conversion of stored outcomes into service messages
+ */
+public class OutcomeDirectoryConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Story STORY = Story.withIdAndPath("storyId", "Test story", "stories/sprint-1/us-1/story.story");
+    private static final Story OTHER_STORY = Story.withIdAndPath("otherId", "Other story", "stories/sprint-1/us-2/other.story");
+
+    private OutcomeDirectoryConverter converter;
+
+    @Before
+    public void before() {
+        converter = spy(new OutcomeDirectoryConverter(4, 2));
+    }
+
+    @After
+    public void after() {
+        converter.shutdown();
+        System.clearProperty("teamcity.steplistener.async");
+        System.clearProperty("teamcity.steplistener.retries");
+    }
+
+    @Test
+    public void testOutcomesAreWrittenInFileOrder() throws IOException {
+
+        converter.shutdown();
+        converter = spy(new OutcomeDirectoryConverter(4, 3));
+        givenOutcome("a.xml", STORY, "firstScenario");
+        givenOutcome("b.xml", OTHER_STORY, "otherScenario");
+        givenOutcome("c.xml", STORY, "secondScenario");
+        folder.newFile("ignored.json");
+
+        StringWriter writer = new StringWriter();
+        int converted = converter.convert(folder.getRoot(), writer);
+
+        String[] expectedMessages = {
+                "##teamcity[testSuiteStarted  name='Test story']",
+                "##teamcity[testStarted  name='sprint-1.us-1.story.firstScenario']",
+                "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.firstScenario']",
+                "##teamcity[testSuiteFinished  name='Test story']",
+                "##teamcity[testSuiteStarted  name='Other story']",
+                "##teamcity[testStarted  name='sprint-1.us-2.other.otherScenario']",
+                "##teamcity[testFinished  duration='100' name='sprint-1.us-2.other.otherScenario']",
+                "##teamcity[testSuiteFinished  name='Other story']",
+                "##teamcity[testSuiteStarted  name='Test story']",
+                "##teamcity[testStarted  name='sprint-1.us-1.story.secondScenario']",
+                "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.secondScenario']",
+                "##teamcity[testSuiteFinished  name='Test story']"
+        };
+
+        assertThat(converted, is(3));
+        assertThat(writer.toString().split("\\r?\\n"), is(expectedMessages));
+    }
+
+    @Test
+    public void testStorySuiteStaysOpenAcrossWindows() throws IOException {
+
+        givenOutcome("a.xml", STORY, "firstScenario");
+        givenOutcome("b.xml", STORY, "secondScenario");
+        givenOutcome("c.xml", STORY, "thirdScenario");
+        givenOutcome("d.xml", OTHER_STORY, "otherScenario");
+
+        StringWriter writer = new StringWriter();
+        int converted = converter.convert(folder.getRoot(), writer);
+
+        String[] expectedMessages = {
+                "##teamcity[testSuiteStarted  name='Test story']",
+                "##teamcity[testStarted  name='sprint-1.us-1.story.firstScenario']",
+                "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.firstScenario']",
+                "##teamcity[testStarted  name='sprint-1.us-1.story.secondScenario']",
+                "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.secondScenario']",
+                "##teamcity[testStarted  name='sprint-1.us-1.story.thirdScenario']",
+                "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.thirdScenario']",
+                "##teamcity[testSuiteFinished  name='Test story']",
+                "##teamcity[testSuiteStarted  name='Other story']",
+                "##teamcity[testStarted  name='sprint-1.us-2.other.otherScenario']",
+                "##teamcity[testFinished  duration='100' name='sprint-1.us-2.other.otherScenario']",
+                "##teamcity[testSuiteFinished  name='Other story']"
+        };
+
+        assertThat(converted, is(4));
+        assertThat(writer.toString().split("\\r?\\n"), is(expectedMessages));
+    }
+
+    @Test
+    public void testOutcomesAreWrittenBeforeConversionReturnsWithAsyncAndRetries() throws IOException {
+
+        System.setProperty("teamcity.steplistener.async", "true");
+        System.setProperty("teamcity.steplistener.retries", "true");
+        givenOutcome("a.xml", STORY, "firstScenario");
+        TestOutcome failedOutcome = new TestOutcome("failedScenario");
+        failedOutcome.setUserStory(STORY);
+        failedOutcome.recordStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed step"));
+        doReturn(failedOutcome).when(converter).loadOutcome(folder.newFile("b.xml"));
+
+        StringWriter writer = new StringWriter();
+        int converted = converter.convert(folder.getRoot(), writer);
+        String[] messages = writer.toString().split("\\r?\\n");
+
+        assertThat(converted, is(2));
+        assertThat(messages.length, is(7));
+        assertThat(messages[1], is("##teamcity[testStarted  name='sprint-1.us-1.story.firstScenario']"));
+        assertThat(messages[3], is("##teamcity[testStarted  name='sprint-1.us-1.story.failedScenario']"));
+        assertThat(messages[4], startsWith("##teamcity[testFailed "));
+        assertThat(messages[5], is("##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.failedScenario']"));
+        assertThat(messages[6], is("##teamcity[testSuiteFinished  name='Test story']"));
+    }
+
+    @Test
+    public void testUnreadableOutcomesAreSkipped() throws IOException {
+
+        givenOutcome("a.xml", STORY, "firstScenario");
+        doReturn(null).when(converter).loadOutcome(folder.newFile("b.xml"));
+
+        int converted = converter.convert(folder.getRoot(), new StringWriter());
+
+        assertThat(converted, is(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingDirectory() throws IOException {
+
+        converter.convert(new File(folder.getRoot(), "missing"), new StringWriter());
+    }
+
+    private void givenOutcome(String fileName, Story story, String methodName) throws IOException {
+        TestOutcome testOutcome = new TestOutcome(methodName);
+        testOutcome.setUserStory(story);
+        testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Passed"));
+        doReturn(testOutcome).when(converter).loadOutcome(folder.newFile(fileName));
+    }
+}
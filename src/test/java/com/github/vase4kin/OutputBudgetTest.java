@@ -0,0 +1,101 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test output budget tiers
+ */
+public class OutputBudgetTest {
+
+    @Test
+    public void testTierIsLoweredAsBytesAreEmitted() {
+
+        OutputBudget budget = new OutputBudget(1000, 0, 0);
+
+        budget.recordBytes(499);
+        assertThat(budget.advance(), is(nullValue()));
+        assertThat(budget.getTier(), is(OutputBudget.Tier.FULL));
+
+        budget.recordBytes(1);
+        assertThat(budget.advance(), is(OutputBudget.Tier.FILTERED_TRACES));
+        assertThat(budget.advance(), is(nullValue()));
+
+        budget.recordBytes(250);
+        assertThat(budget.advance(), is(OutputBudget.Tier.FIRST_LINE));
+
+        budget.recordBytes(250);
+        assertThat(budget.advance(), is(OutputBudget.Tier.COUNTS));
+        assertThat(budget.getTier(), is(OutputBudget.Tier.COUNTS));
+    }
+
+    @Test
+    public void testTierIsLoweredWhenFailureRateIsExceeded() {
+
+        OutputBudget budget = new OutputBudget(0, 50, 10);
+
+        budget.recordTests(9, 9);
+        assertThat(budget.advance(), is(nullValue()));
+
+        budget.recordTests(1, 0);
+        assertThat(budget.advance(), is(OutputBudget.Tier.FIRST_LINE));
+
+        // tiers never go back
+        budget.recordTests(100, 0);
+        assertThat(budget.advance(), is(nullValue()));
+        assertThat(budget.getTier(), is(OutputBudget.Tier.FIRST_LINE));
+    }
+
+    @Test
+    public void testReportIsPrintedOnlyIfDetailsWereReduced() {
+
+        final List<String> messages = new ArrayList<>();
+        ServiceMessageSink sink = new ServiceMessageSink() {
+            @Override
+            public void print(String message) {
+                messages.add(message);
+            }
+        };
+        OutputBudget budget = new OutputBudget(100, 0, 0);
+
+        budget.recordTests(1, 1);
+        budget.report(sink);
+        assertThat(messages.size(), is(0));
+
+        budget.recordBytes(100);
+        budget.advance();
+        budget.recordTests(2, 2);
+        budget.report(sink);
+        assertThat(messages.get(0), is("##teamcity[message  text='Output budget: 2 of 3 failures reported with reduced details, 100 bytes emitted' status='WARNING']"));
+    }
+
+    @Test
+    public void testFrameworkFramesAreFilteredFromStackTrace() {
+
+        String stackTrace = "java.lang.AssertionError: expected\r\n" +
+                "\tat com.example.LoginSteps.checkTitle(LoginSteps.java:42)\r\n" +
+                "\tat sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)\r\n" +
+                "\tat java.lang.reflect.Method.invoke(Method.java:606)\r\n" +
+                "\tat net.thucydides.core.steps.StepInterceptor.invokeMethod(StepInterceptor.java:123)\r\n" +
+                "\tat com.example.LoginTest.login(LoginTest.java:17)\r\n" +
+                "\tat org.junit.runners.ParentRunner.run(ParentRunner.java:309)";
+
+        assertThat(OutputBudget.filterStackTrace(stackTrace), is("java.lang.AssertionError: expected\r\n" +
+                "\tat com.example.LoginSteps.checkTitle(LoginSteps.java:42)\r\n" +
+                "\t... 3 framework frames\n" +
+                "\tat com.example.LoginTest.login(LoginTest.java:17)\r\n" +
+                "\t... 1 framework frames"));
+    }
+
+    @Test
+    public void testFirstLine() {
+        assertThat(OutputBudget.getFirstLine("expected 'a'\r\nbut was 'b'"), is("expected 'a'"));
+        assertThat(OutputBudget.getFirstLine("expected 'a'"), is("expected 'a'"));
+    }
+}
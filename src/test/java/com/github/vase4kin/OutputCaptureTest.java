@@ -0,0 +1,85 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test capturing test output into ring buffers
+ */
+public class OutputCaptureTest {
+
+    private final ByteArrayOutputStream original = new ByteArrayOutputStream();
+    private final OutputCapture capture = new OutputCapture(16);
+    private final PrintStream out = capture.wrap(new PrintStream(original, true), false);
+    private final PrintStream err = capture.wrap(new PrintStream(original, true), true);
+
+    @Test
+    public void testOutputIsCapturedOnlyWhileTestRuns() {
+
+        out.print("before ");
+        capture.start();
+        out.print("stdout");
+        err.print("stderr");
+        OutputCapture.Captured captured = capture.stop(true);
+        out.print("after");
+
+        assertThat(captured.getOut(), is("stdout"));
+        assertThat(captured.getErr(), is("stderr"));
+        assertThat(original.toString(), is("before after"));
+    }
+
+    @Test
+    public void testOnlyTheTailIsKept() {
+
+        capture.start();
+        out.print("0123456789");
+        out.print("abcdefghij");
+        out.print('k');
+
+        assertThat(capture.stop(true).getOut(), is("[5 bytes truncated]\n56789abcdefghijk"));
+    }
+
+    @Test
+    public void testDiscardedOutputIsNotKeptForTheNextTest() {
+
+        capture.start();
+        out.print("passed test output");
+        assertThat(capture.stop(false), is(nullValue()));
+
+        capture.start();
+        assertThat(capture.stop(true), is(nullValue()));
+    }
+
+    @Test
+    public void testOutputOfOtherThreadsIsNotCaptured() throws InterruptedException {
+
+        capture.start();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                out.print("other thread");
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertThat(capture.stop(true), is(nullValue()));
+        assertThat(original.toString(), is("other thread"));
+    }
+
+    @Test
+    public void testLongWriteWrapsAround() {
+
+        OutputCapture.RingBuffer buffer = new OutputCapture.RingBuffer(8);
+        buffer.write("abcde".getBytes(), 0, 5);
+        buffer.write("0123456789xyz".getBytes(), 3, 8);
+
+        assertThat(buffer.getTail(), is("[5 bytes truncated]\n3456789x"));
+    }
+}
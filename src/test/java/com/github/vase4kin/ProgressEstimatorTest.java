@@ -0,0 +1,79 @@
+package com.github.vase4kin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test progress estimation from durations of a previous run
+ */
+public class ProgressEstimatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ServiceMessageSink sink = new ServiceMessageSink() {
+        @Override
+        public void print(String message) {
+            throw new AssertionError(message);
+        }
+    };
+
+    @Test
+    public void testProgressIsReportedOncePerInterval() throws IOException {
+
+        DurationRecorder recorder = new DurationRecorder(new File(folder.getRoot(), "durations-1.tsv"), sink);
+        recorder.recordTest("com.example.LoginTest", "login", 3000);
+        recorder.recordTest("com.example.LoginTest", "logout", 1000);
+        recorder.recordTest("com.example.SearchTest", "search", 4000);
+        recorder.recordSuite("com.example.LoginTest", 4000);
+        recorder.close();
+        DurationIndex index = DurationIndex.read(folder.getRoot());
+        assertThat(index.size(), is(3));
+        assertThat(index.getTotalDuration(), is(8000L));
+
+        ProgressEstimator estimator = new ProgressEstimator(index, 1, 1000, 0);
+
+        assertThat(estimator.record("com.example.LoginTest", "login", 500), is(nullValue()));
+        assertThat(estimator.record("com.example.LoginTest", "logout", 2000), is("50% done, ETA 2s (2 tests finished, 3 expected)"));
+        assertThat(estimator.record("com.example.UnknownTest", "test", 2500), is(nullValue()));
+        assertThat(estimator.record("com.example.SearchTest", "search", 4000), is("100% done, ETA 0s (4 tests finished, 3 expected)"));
+    }
+
+    @Test
+    public void testForkExpectsItsShareOfTheRun() throws IOException {
+
+        DurationRecorder recorder = new DurationRecorder(new File(folder.getRoot(), "durations-1.tsv"), sink);
+        recorder.recordTest("com/example/LoginTest.java", "login", 3000);
+        recorder.recordTest("com/example/LoginTest.java", "logout", 1000);
+        recorder.recordTest("com/example/SearchTest.java", "search", 4000);
+        recorder.close();
+
+        ProgressEstimator estimator = new ProgressEstimator(DurationIndex.read(folder.getRoot()), 2, 1000, 0);
+
+        assertThat(estimator.record("com/example/LoginTest.java", "login", 1000), is("75% of this fork done, ETA 0s (1 tests finished, 2 expected)"));
+    }
+
+    @Test
+    public void testIndexGrowsAndKeepsLastDuration() {
+
+        DurationIndex index = new DurationIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.put(DurationIndex.hash("test" + i), i);
+        }
+        index.put(DurationIndex.hash("test1"), 100);
+
+        assertThat(index.size(), is(10000));
+        assertThat(index.get(DurationIndex.hash("test1")), is(100L));
+        assertThat(index.get(DurationIndex.hash("test9999")), is(9999L));
+        assertThat(index.get(DurationIndex.hash("test10000")), is(-1L));
+        assertThat(index.getTotalDuration(), is(49995000L + 99));
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test per-test resource accounting
+ */
+public class ResourceMeterTest {
+
+    @Test
+    public void testMetricsAreParsedFromOptions() {
+        assertThat(ResourceMeter.parse("cpu, GC"), is((Set<ResourceMeter.Metric>) EnumSet.of(
+                ResourceMeter.Metric.CPU, ResourceMeter.Metric.GC_COUNT, ResourceMeter.Metric.GC_TIME)));
+        assertThat(ResourceMeter.parse(null).isEmpty(), is(true));
+        assertThat(ResourceMeter.parse("unknown").isEmpty(), is(true));
+    }
+
+    @Test
+    public void testAllocatedBytesAreMeasuredOnTheTestThread() {
+
+        ResourceMeter meter = new ResourceMeter(EnumSet.of(ResourceMeter.Metric.ALLOCATED));
+        if (!meter.getMetrics().contains(ResourceMeter.Metric.ALLOCATED)) {
+            return;
+        }
+
+        meter.start();
+        byte[][] allocated = new byte[16][];
+        for (int i = 0; i < allocated.length; i++) {
+            allocated[i] = new byte[64 * 1024];
+        }
+        long[] resources = meter.stop();
+
+        assertThat(allocated.length, is(16));
+        assertThat(resources[ResourceMeter.Metric.ALLOCATED.ordinal()], greaterThan(1024L * 1024));
+        assertThat(resources[ResourceMeter.Metric.CPU.ordinal()], is(-1L));
+        assertThat(meter.stop(), is(nullValue()));
+    }
+
+    @Test
+    public void testSuiteUsageKeepsTopOffenders() {
+
+        ResourceMeter.SuiteUsage usage = new ResourceMeter.SuiteUsage(2);
+        assertThat(usage.describe("suite"), is(nullValue()));
+
+        usage.add("first", new long[]{10, 3000, -1, -1});
+        usage.add("second", new long[]{30, 1000, -1, -1});
+        usage.add("third", new long[]{20, 2000, -1, -1});
+
+        assertThat(usage.describe("suite"), is("Resource usage of suite suite:\n" +
+                "cpuTimeMs: second=30 third=20\n" +
+                "allocatedBytes: first=3000 third=2000"));
+    }
+}
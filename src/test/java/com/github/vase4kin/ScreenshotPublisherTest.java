@@ -0,0 +1,77 @@
+package com.github.vase4kin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class to test background screenshot publishing
+ */
+public class ScreenshotPublisherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+    private final ServiceMessageSink sink = new ServiceMessageSink() {
+        @Override
+        public void print(String message) {
+            messages.add(message);
+        }
+    };
+
+    @Test
+    public void testIdenticalScreenshotsArePublishedOnce() throws IOException {
+
+        File artifacts = new File(folder.getRoot(), "artifacts");
+        ScreenshotPublisher publisher = new ScreenshotPublisher(artifacts, 16);
+
+        File first = givenScreenshot("first.png", "login page");
+        File second = givenScreenshot("second.png", "login page");
+        File third = givenScreenshot("third.png", "home page");
+
+        publisher.publish("story.firstScenario", Arrays.asList(first, second, third), sink, null);
+        publisher.publish("story.secondScenario", Arrays.asList(second), sink, "1");
+
+        assertTrue(publisher.drain(5000));
+        assertThat(artifacts.list().length, is(2));
+        assertThat(messages.size(), is(5));
+        assertThat(messages.get(0), startsWith("##teamcity[publishArtifacts '"));
+        assertThat(messages.get(1), startsWith("##teamcity[publishArtifacts '"));
+        assertThat(messages.get(2), startsWith("##teamcity[testMetadata  testName='story.firstScenario' type='image' value='screenshots/"));
+        assertThat(messages.get(3), startsWith("##teamcity[testMetadata  testName='story.firstScenario' type='image' value='screenshots/"));
+        assertThat(messages.get(4), is(messages.get(2).replace("firstScenario", "secondScenario").replace("']", "' flowId='1']")));
+    }
+
+    @Test
+    public void testMissingScreenshotIsSkipped() {
+
+        ScreenshotPublisher publisher = new ScreenshotPublisher(folder.getRoot(), 16);
+
+        publisher.publish("story.scenario", Arrays.asList(new File(folder.getRoot(), "missing.png")), sink, null);
+
+        assertTrue(publisher.drain(10000));
+        assertThat(messages.size(), is(0));
+    }
+
+    private File givenScreenshot(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(Charset.forName("UTF-8")));
+        return file;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.vase4kin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test the full failure details log
+ */
+public class SegmentLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreReferencedByOffset() throws IOException {
+
+        SegmentLog log = new SegmentLog(folder.getRoot(), "details", 1024, 1024);
+
+        String first = log.append("first", "details");
+        String second = log.append("second", "more details");
+        log.seal();
+
+        assertThat(first, is("steplistener-details/details-1.log at 0, 18 bytes"));
+        assertThat(second, is("steplistener-details/details-1.log at 18, 24 bytes"));
+        List<File> sealed = log.pollSealed();
+        assertThat(sealed.size(), is(1));
+        assertThat(read(sealed.get(0), 18, 24), is("=== second\nmore details\n"));
+        assertThat(sealed.get(0).length(), is(42L));
+        assertThat(log.pollSealed().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testSegmentsAreRotatedBySize() throws IOException {
+
+        SegmentLog log = new SegmentLog(folder.getRoot(), "details", 32, 32);
+
+        log.append("first", "details");
+        String second = log.append("second", "more details");
+        String large = log.append("large", "details larger than a segment");
+        log.seal();
+
+        assertThat(second, is("steplistener-details/details-2.log at 0, 24 bytes"));
+        assertThat(large, is("steplistener-details/details-3.log at 0, 40 bytes"));
+        List<File> sealed = log.pollSealed();
+        assertThat(sealed.size(), is(3));
+        assertThat(sealed.get(0).length(), is(18L));
+        assertThat(read(sealed.get(2), 0, 40), is("=== large\ndetails larger than a segment\n"));
+    }
+
+    @Test
+    public void testSegmentIsMappedRegionByRegion() throws IOException {
+
+        SegmentLog log = new SegmentLog(folder.getRoot(), "details", 1024, 20);
+
+        log.append("first", "details");
+        String second = log.append("second", "more details");
+        String third = log.append("third", "details");
+        log.seal();
+
+        assertThat(second, is("steplistener-details/details-1.log at 18, 24 bytes"));
+        assertThat(third, is("steplistener-details/details-1.log at 42, 18 bytes"));
+        List<File> sealed = log.pollSealed();
+        assertThat(sealed.size(), is(1));
+        assertThat(sealed.get(0).length(), is(60L));
+        assertThat(read(sealed.get(0), 0, 60), is("=== first\ndetails\n=== second\nmore details\n=== third\ndetails\n"));
+    }
+
+    @Test
+    public void testSealedSegmentIsPublished() {
+        assertThat(SegmentLog.formatPublishArtifacts(new File("/tmp/details-1.log")),
+                is("##teamcity[publishArtifacts '/tmp/details-1.log => steplistener-details']"));
+    }
+
+    private static String read(File file, int offset, int length) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[length];
+            input.seek(offset);
+            input.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+}
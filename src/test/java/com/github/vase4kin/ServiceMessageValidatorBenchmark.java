@@ -0,0 +1,65 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * Throughput benchmark of service message parsing and validation.
+ * Generates a synthetic build log of the given size and validates it several times.
+ * Usage: ServiceMessageValidatorBenchmark [log size in MB] [iterations]
+ */
+public class ServiceMessageValidatorBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File log = File.createTempFile("teamcity-build", ".log");
+        log.deleteOnExit();
+        long tests = generateLog(log, megabytes * 1024L * 1024L);
+        System.out.println(String.format("Generated %d MB log with %d tests", log.length() >> 20, tests));
+        for (int i = 0; i < iterations; i++) {
+            long started = System.nanoTime();
+            ServiceMessageValidator validator = new ServiceMessageValidator();
+            try (Reader reader = new InputStreamReader(new FileInputStream(log), UTF_8)) {
+                new ServiceMessageParser(reader).parse(validator);
+            }
+            validator.finish();
+            double seconds = (System.nanoTime() - started) / 1e9;
+            if (!validator.isValid()) {
+                throw new IllegalStateException(validator.getViolations().toString());
+            }
+            System.out.println(String.format("Iteration %d: %d messages in %.2f s, %.1f MB/s, %.0f messages/s",
+                    i + 1, validator.getMessageCount(), seconds, log.length() / 1e6 / seconds, validator.getMessageCount() / seconds));
+        }
+    }
+
+    private static long generateLog(File log, long size) throws IOException {
+        long tests = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(log), UTF_8), 1 << 16)) {
+            long written = 0;
+            int suite = 0;
+            while (written < size) {
+                String suiteName = "com.example.stories.Story" + suite++;
+                written += println(writer, "##teamcity[testSuiteStarted  name='" + suiteName + "']");
+                for (int test = 0; test < 100; test++, tests++) {
+                    String name = "stories.sprint-1.story" + suite + ".scenario" + test;
+                    written += println(writer, "##teamcity[testStarted  name='" + name + "' flowId='" + (test % 4) + "']");
+                    if (test % 10 == 0) {
+                        written += println(writer, "##teamcity[testFailed  message='expected |'a|' but was |'b|'' details='Steps:|r|nOpen page (0.1) -> SUCCESS|r|nCheck |[value|] (0.2) -> FAILURE|r|njava.lang.AssertionError: expected|r|n    at com.example.Steps.check(Steps.java:42)|r|n' name='" + name + "' flowId='" + (test % 4) + "']");
+                    }
+                    written += println(writer, "##teamcity[testFinished  duration='" + test + "' name='" + name + "' flowId='" + (test % 4) + "']");
+                }
+                written += println(writer, "##teamcity[testSuiteFinished  name='" + suiteName + "']");
+            }
+        }
+        return tests;
+    }
+
+    private static int println(Writer writer, String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        return line.length() + 1;
+    }
+}
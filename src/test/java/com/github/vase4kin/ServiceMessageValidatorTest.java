@@ -0,0 +1,131 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class to test service message parsing and validation
+ */
+public class ServiceMessageValidatorTest {
+
+    private static final Story STORY = Story.withIdAndPath("storyId", "Test story", "stories/sprint-1/us-1/story.story");
+
+    @Test
+    public void testParseMessages() throws IOException {
+
+        final List<ServiceMessage> messages = new ArrayList<>();
+        String log = "INFO ##teamcity[testFailed  message='it|'s |[broken|]' details='a||b|r|nc|0x00e9' name='test']\n"
+                + "plain line\n"
+                + "##teamcity[publishArtifacts 'target/screenshots => screenshots']\n";
+
+        long count = new ServiceMessageParser(new StringReader(log)).parse(new ServiceMessageParser.Handler() {
+            @Override
+            public void message(ServiceMessage message) {
+                messages.add(message);
+            }
+
+            @Override
+            public void malformed(long lineNumber, String line, String error) {
+                throw new AssertionError(error);
+            }
+        });
+
+        assertThat(count, is(2L));
+        assertThat(messages.get(0).getName(), is("testFailed"));
+        assertThat(messages.get(0).getAttribute("message"), is("it's [broken]"));
+        assertThat(messages.get(0).getAttribute("details"), is("a|b\r\ncé"));
+        assertThat(messages.get(0).getAttribute("name"), is("test"));
+        assertThat(messages.get(1).getLineNumber(), is(3L));
+        assertThat(messages.get(1).getValue(), is("target/screenshots => screenshots"));
+    }
+
+    @Test
+    public void testMalformedMessages() throws IOException {
+
+        ServiceMessageValidator validator = validate(
+                "##teamcity[testStarted name='it's']",
+                "##teamcity[testStarted name='a|b']",
+                "##teamcity[testStarted name='a[b]']",
+                "##teamcity[testStarted name='a'"
+        );
+
+        assertThat(validator.getViolations(), is(Arrays.asList(
+                "line 1: malformed message, attribute value is missing",
+                "line 2: malformed message, invalid escape '|b' at 30",
+                "line 3: malformed message, unescaped '[' at 30",
+                "line 4: malformed message, closing bracket is missing"
+        )));
+    }
+
+    @Test
+    public void testUnbalancedTestsAndSuites() throws IOException {
+
+        ServiceMessageValidator validator = validate(
+                "##teamcity[testSuiteStarted name='suite']",
+                "##teamcity[testStarted name='first']",
+                "##teamcity[testStarted name='second' flowId='2']",
+                "##teamcity[testFailed name='second']",
+                "##teamcity[testFinished name='first' duration='1.5']",
+                "##teamcity[testSuiteStarted name='other']",
+                "##teamcity[testSuiteFinished name='suite']"
+        );
+
+        assertThat(validator.getViolations(), is(Arrays.asList(
+                "line 4: testFailed for test 'second' but test 'first' is running",
+                "line 5: test 'first' has invalid duration '1.5'",
+                "line 7: suite 'suite' is finished but suite 'other' is the current one",
+                "suite 'other' is not finished",
+                "test 'second' is not finished in flow '2'"
+        )));
+    }
+
+    @Test
+    public void testListenerOutputIsValid() throws IOException {
+
+        final StringBuilder log = new StringBuilder();
+        TeamCityStepListener listener = new TeamCityStepListener(new ServiceMessageSink() {
+            @Override
+            public void print(String message) {
+                log.append(message).append('\n');
+            }
+        });
+
+        listener.testSuiteStarted(STORY);
+        TestOutcome passed = new TestOutcome("passedScenario");
+        passed.setUserStory(STORY);
+        passed.recordStep(TestStepFactory.getSuccessfulTestStep("Passed 'quoted' [step]"));
+        listener.testFinished(passed);
+        TestOutcome failed = new TestOutcome("failedScenario");
+        failed.setUserStory(STORY);
+        failed.recordStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed\nstep"));
+        listener.testFinished(failed);
+        listener.testSuiteFinished();
+
+        ServiceMessageValidator validator = validate(log.toString());
+
+        assertTrue(validator.getViolations().toString(), validator.isValid());
+        assertThat(validator.getMessageCount(), is(7L));
+    }
+
+    private static ServiceMessageValidator validate(String... lines) throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (String line : lines) {
+            log.append(line).append('\n');
+        }
+        ServiceMessageValidator validator = new ServiceMessageValidator();
+        new ServiceMessageParser(new StringReader(log.toString())).parse(validator);
+        validator.finish();
+        return validator;
+    }
+}
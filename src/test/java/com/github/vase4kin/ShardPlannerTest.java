@@ -0,0 +1,127 @@
+package com.github.vase4kin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test recording durations and planning balanced shards
+ */
+public class ShardPlannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> messages = new ArrayList<>();
+    private final ServiceMessageSink sink = new ServiceMessageSink() {
+        @Override
+        public void print(String message) {
+            messages.add(message);
+        }
+    };
+
+    @Test
+    public void testRecordedSuitesArePlannedLongestFirst() throws IOException {
+
+        DurationRecorder recorder = new DurationRecorder(new File(folder.getRoot(), "durations-1.tsv"), sink);
+        recorder.recordSuite("com/example/LoginTest.java", 700);
+        recorder.recordSuite("com/example/SearchTest.java", 500);
+        recorder.recordSuite("com/example/CartTest.java", 400);
+        recorder.recordSuite("com/example/ProfileTest.java", 300);
+        recorder.recordTest("com/example/LoginTest.java", "login", 700);
+        recorder.close();
+        DurationRecorder secondRecorder = new DurationRecorder(new File(folder.getRoot(), "durations-2.tsv"), sink);
+        secondRecorder.recordSuite("com/example/LoginTest.java", 500);
+        secondRecorder.close();
+
+        ShardPlanner planner = new ShardPlanner();
+        planner.read(folder.getRoot());
+        List<ShardPlanner.Shard> shards = planner.plan(2, false);
+
+        assertThat(shards.get(0).getIncludes(), is(Arrays.asList("com/example/LoginTest.java", "com/example/ProfileTest.java")));
+        assertThat(shards.get(0).getDuration(), is(900L));
+        assertThat(shards.get(1).getIncludes(), is(Arrays.asList("com/example/CartTest.java", "com/example/SearchTest.java")));
+        assertThat(shards.get(1).getDuration(), is(900L));
+        assertThat(planner.plan(2, true).get(0).getIncludes(), is(Arrays.asList("com/example/LoginTest.java#login")));
+    }
+
+    @Test
+    public void testWriteFailureIsReportedOnce() throws IOException {
+
+        File file = folder.newFile("durations-1.tsv");
+        DurationRecorder recorder = new DurationRecorder(new File(file, "durations-2.tsv"), sink);
+        recorder.recordSuite("com/example/LoginTest.java", 700);
+        recorder.recordSuite("com/example/SearchTest.java", 500);
+        recorder.close();
+
+        assertThat(messages.size(), is(1));
+        assertThat(messages.get(0), startsWith("##teamcity[message  text='Can|'t write durations "));
+        assertThat(messages.get(0), endsWith(" status='WARNING']"));
+    }
+
+    @Test
+    public void testSuitesSurefireCantSelectAreSkipped() {
+
+        ShardPlanner planner = new ShardPlanner();
+        planner.readLine("S\tcom/example/LoginTest.java\t700");
+        planner.readLine("S\tLogin story\t500");
+        planner.readLine("T\tcom/example/LoginTest.java\tlogin\t300");
+        planner.readLine("T\tcom/example/LoginTest.java\tlogin[1]\t300");
+        planner.readLine("T\tLogin story\tlogin\t300");
+
+        assertThat(planner.plan(1, false).get(0).getIncludes(), is(Arrays.asList("com/example/LoginTest.java")));
+        assertThat(planner.getSkipped(), is(1));
+        assertThat(planner.plan(1, true).get(0).getIncludes(), is(Arrays.asList("com/example/LoginTest.java#login")));
+        assertThat(planner.getSkipped(), is(2));
+    }
+
+    @Test
+    public void testTestClassesAreRecordedAsIncludes() {
+
+        assertThat(DurationRecorder.getSuite(ShardPlannerTest.class, "ShardPlannerTest"), is("com/github/vase4kin/ShardPlannerTest.java"));
+        assertThat(DurationRecorder.getSuite(Nested.class, "Nested"), is("Nested"));
+        assertThat(DurationRecorder.getSuite(null, "Login story"), is("Login story"));
+    }
+
+    @Test
+    public void testPlanningHundredThousandTestsIsFast() {
+
+        ShardPlanner planner = new ShardPlanner();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            planner.readLine("T\tcom/example/Suite" + i / 20 + ".java\ttest" + i + "\t" + random.nextInt(60000));
+        }
+
+        long started = System.nanoTime();
+        List<ShardPlanner.Shard> shards = planner.plan(8, true);
+        long elapsedMillis = (System.nanoTime() - started) / 1000000;
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        int tests = 0;
+        for (ShardPlanner.Shard shard : shards) {
+            min = Math.min(min, shard.getDuration());
+            max = Math.max(max, shard.getDuration());
+            tests += shard.getIncludes().size();
+        }
+        assertThat(tests, is(100000));
+        assertThat(max - min, lessThan(60000L));
+        assertThat(elapsedMillis, lessThan(1000L));
+    }
+
+    private static class Nested {
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the listener runs in constant memory during a long run. It takes long and depends on GC timing,
+ * so it's not a part of the unit tests and runs with mvn test -Psoak
+ */
+public class SoakCheck {
+
+    private static final long MAX_RETAINED_HEAP_GROWTH = 2L * 1024 * 1024;
+
+    @Test
+    public void testListenerRetainsNoMemoryPerTest() {
+
+        SoakHarness.Result result = new SoakHarness(20000, 2000).run();
+
+        assertTrue(result.getValidator().getViolations().toString(), result.getValidator().isValid());
+        assertThat(result.getOpenSuites(), is(0));
+        assertThat(result.getPendingExamples(), is(0));
+        assertThat(result.toString(), result.getRetainedHeapGrowth(), lessThan(MAX_RETAINED_HEAP_GROWTH));
+    }
+}
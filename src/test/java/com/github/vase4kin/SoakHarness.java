@@ -0,0 +1,249 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.DataTable;
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import net.thucydides.core.model.TestStep;
+import net.thucydides.core.steps.ExecutedStepDescription;
+import net.thucydides.core.steps.StepFailure;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Soak harness driving one listener instance through a long synthetic run.
+ * Generates class and story suites with passing, failing, pending and data-driven tests,
+ * calls all step listener callbacks in the order Thucydides does, validates the produced
+ * service messages and measures time and allocations per test and retained heap after every checkpoint.
+ * Usage: SoakHarness [number of tests] [checkpoint interval]
+ */
+public class SoakHarness {
+
+    private static final Throwable ASSERTION_ERROR = new AssertionError("expected 'a' but was 'b'");
+    private static final DataTable DATA_TABLE = mock(DataTable.class);
+
+    private final int testCount;
+    private final int checkpointInterval;
+    private final Random random = new Random(42);
+
+    private final ServiceMessageValidator validator = new ServiceMessageValidator();
+    private final ServiceMessageParser parser = new ServiceMessageParser();
+    private long messageCount;
+    private long messageChars;
+
+    private final TeamCityStepListener listener = new TeamCityStepListener(new ServiceMessageSink() {
+        @Override
+        public void print(String message) {
+            messageCount++;
+            messageChars += message.length();
+            parser.parse(message, validator);
+        }
+    });
+
+    public SoakHarness(int testCount, int checkpointInterval) {
+        this.testCount = testCount;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public Result run() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        List<Long> retainedHeap = new ArrayList<>();
+        long allocatedBefore = getAllocatedBytes();
+        long elapsedNanos = 0;
+        int tests = 0;
+        int suite = 0;
+        while (tests < testCount) {
+            long started = System.nanoTime();
+            tests += runSuite(suite++, Math.min(testCount - tests, 1 + random.nextInt(50)));
+            elapsedNanos += System.nanoTime() - started;
+            if (tests / checkpointInterval > retainedHeap.size()) {
+                retainedHeap.add(getRetainedHeap(memory));
+            }
+        }
+        validator.finish();
+        long allocatedBytes = getAllocatedBytes() - allocatedBefore;
+        return new Result(tests, elapsedNanos, allocatedBytes, retainedHeap, messageCount, messageChars,
+                listener.getOpenSuiteCount(), listener.getPendingExampleCount(), validator);
+    }
+
+    private int runSuite(int suite, int tests) {
+        Story story = Story.withIdAndPath("story" + suite, "Story " + suite, "stories/sprint-" + suite % 10 + "/story" + suite + ".story");
+        boolean classSuite = suite % 3 == 0;
+        if (classSuite) {
+            listener.testSuiteStarted(SoakHarness.class);
+        } else {
+            listener.testSuiteStarted(story);
+        }
+        for (int test = 0; test < tests; test++) {
+            runTest(story, "scenario" + test);
+        }
+        listener.testSuiteFinished();
+        return tests;
+    }
+
+    private void runTest(Story story, String methodName) {
+        TestOutcome outcome = new TestOutcome(methodName);
+        outcome.setUserStory(story);
+        listener.testStarted(methodName);
+        int kind = random.nextInt(20);
+        if (kind < 3) {
+            recordExamples(outcome, 1 + random.nextInt(kind == 0 ? 200 : 10));
+        } else {
+            int steps = 1 + random.nextInt(8);
+            for (int step = 0; step < steps; step++) {
+                boolean last = step == steps - 1;
+                outcome.recordStep(recordStep("step " + step + " of " + methodName, last && kind == 3, last && kind == 4));
+            }
+            if (kind == 3) {
+                listener.testFailed(outcome, ASSERTION_ERROR);
+            }
+        }
+        listener.testFinished(outcome);
+    }
+
+    private void recordExamples(TestOutcome outcome, int examples) {
+        outcome.useExamplesFrom(DATA_TABLE);
+        listener.useExamplesFrom(DATA_TABLE);
+        for (int example = 0; example < examples; example++) {
+            Map<String, String> data = new HashMap<>();
+            data.put("value", String.valueOf(example));
+            listener.exampleStarted(data);
+            TestStep exampleStep = new TestStep("[" + (example + 1) + "] " + data);
+            exampleStep.addChildStep(recordStep("check value " + example, example % 7 == 0, false));
+            outcome.recordStep(exampleStep);
+            listener.exampleFinished();
+        }
+    }
+
+    private TestStep recordStep(String description, boolean failed, boolean pending) {
+        ExecutedStepDescription stepDescription = ExecutedStepDescription.withTitle(description);
+        listener.stepStarted(stepDescription);
+        TestStep step;
+        if (failed) {
+            step = TestStepFactory.getErrorTestStepWithThrowable(description, ASSERTION_ERROR);
+            listener.stepFailed(new StepFailure(stepDescription, ASSERTION_ERROR));
+        } else if (pending) {
+            step = TestStepFactory.getPendingTestStep(description);
+            listener.stepPending();
+        } else {
+            step = TestStepFactory.getSuccessfulTestStep(description);
+            listener.stepFinished();
+        }
+        step.setDuration(random.nextInt(2000));
+        return step;
+    }
+
+    private static long getRetainedHeap(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public static class Result {
+
+        private final int testCount;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+        private final List<Long> retainedHeap;
+        private final long messageCount;
+        private final long messageChars;
+        private final int openSuites;
+        private final int pendingExamples;
+        private final ServiceMessageValidator validator;
+
+        private Result(int testCount, long elapsedNanos, long allocatedBytes, List<Long> retainedHeap, long messageCount,
+                       long messageChars, int openSuites, int pendingExamples, ServiceMessageValidator validator) {
+            this.testCount = testCount;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.retainedHeap = retainedHeap;
+            this.messageCount = messageCount;
+            this.messageChars = messageChars;
+            this.openSuites = openSuites;
+            this.pendingExamples = pendingExamples;
+            this.validator = validator;
+        }
+
+        /**
+         * @return growth of retained heap between the first and the last checkpoints, estimated with least squares
+         */
+        public long getRetainedHeapGrowth() {
+            int n = retainedHeap.size() - 1;
+            if (n < 2) {
+                return 0;
+            }
+            double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+            for (int x = 0; x < n; x++) {
+                // the first checkpoint is skipped as warm up
+                double y = retainedHeap.get(x + 1);
+                sumX += x;
+                sumY += y;
+                sumXY += x * y;
+                sumXX += (double) x * x;
+            }
+            double slope = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+            return (long) (slope * (n - 1));
+        }
+
+        public int getOpenSuites() {
+            return openSuites;
+        }
+
+        public int getPendingExamples() {
+            return pendingExamples;
+        }
+
+        public ServiceMessageValidator getValidator() {
+            return validator;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("tests: %d, messages: %d (%d MB)%n", testCount, messageCount, messageChars >> 20));
+            builder.append(String.format("time per test: %.1f us%n", elapsedNanos / 1e3 / testCount));
+            if (allocatedBytes >= 0) {
+                builder.append(String.format("allocated per test: %d bytes, allocation rate: %.1f MB/s%n",
+                        allocatedBytes / testCount, allocatedBytes / 1e6 / (elapsedNanos / 1e9)));
+            }
+            builder.append(String.format("retained heap per checkpoint (KB): "));
+            for (Long retained : retainedHeap) {
+                builder.append(retained >> 10).append(' ');
+            }
+            builder.append(String.format("%nretained heap growth: %d KB%n", getRetainedHeapGrowth() >> 10));
+            builder.append(String.format("open suites: %d, pending examples: %d, violations: %d%n",
+                    openSuites, pendingExamples, validator.getViolationCount()));
+            return builder.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        int tests = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        int checkpoint = args.length > 1 ? Integer.parseInt(args[1]) : tests / 20;
+        Result result = new SoakHarness(tests, checkpoint).run();
+        System.out.print(result);
+        for (String violation : result.getValidator().getViolations()) {
+            System.out.println(violation);
+        }
+    }
+}
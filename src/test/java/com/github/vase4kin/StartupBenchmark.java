@@ -0,0 +1,82 @@
+package com.github.vase4kin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Startup benchmark of a forked test JVM: starts fresh JVMs which create the listener and print
+ * the first service message, and reports the median time to the first message and the number
+ * of loaded classes. Run it with different classpaths or sinks to compare them.
+ * Usage: StartupBenchmark [number of forks] [logger|stdout] [classpath]
+ */
+public class StartupBenchmark {
+
+    private static final String RESULT_PREFIX = "startup ";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--fork")) {
+            fork();
+            return;
+        }
+        int forks = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        String sink = args.length > 1 ? args[1] : "logger";
+        String classpath = args.length > 2 ? args[2] : System.getProperty("java.class.path");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<Long> processMillis = new ArrayList<>();
+        List<Long> firstMessageMicros = new ArrayList<>();
+        List<Long> loadedClasses = new ArrayList<>();
+        for (int i = 0; i < forks; i++) {
+            long started = System.nanoTime();
+            Process process = new ProcessBuilder(java, "-cp", classpath,
+                    "-Dteamcity.steplistener.stdout=" + sink.equals("stdout"),
+                    StartupBenchmark.class.getName(), "--fork")
+                    .redirectErrorStream(true)
+                    .start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(RESULT_PREFIX)) {
+                        String[] values = line.substring(RESULT_PREFIX.length()).split(" ");
+                        firstMessageMicros.add(Long.parseLong(values[0]));
+                        loadedClasses.add(Long.parseLong(values[1]));
+                    }
+                }
+            }
+            process.waitFor();
+            processMillis.add((System.nanoTime() - started) / 1000000);
+        }
+        if (firstMessageMicros.isEmpty()) {
+            System.err.println("Forks printed no results, check the classpath");
+            System.exit(1);
+        }
+        System.out.println(String.format("sink: %s, forks: %d", sink, forks));
+        System.out.println(String.format("median fork time: %d ms", median(processMillis)));
+        System.out.println(String.format("median time to first message: %.1f ms", median(firstMessageMicros) / 1e3));
+        System.out.println(String.format("median loaded classes: %d", median(loadedClasses)));
+    }
+
+    private static void fork() {
+        long started = System.nanoTime();
+        TeamCityStepListener listener = new TeamCityStepListener();
+        listener.testSuiteStarted(StartupBenchmark.class);
+        long firstMessage = System.nanoTime();
+        // the class loading bean is created after the first message, so its own classes are counted for every sink equally
+        int loadedClasses = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+        System.out.println(RESULT_PREFIX + (firstMessage - started) / 1000 + " " + loadedClasses);
+        listener.testSuiteFinished();
+    }
+
+    private static long median(List<Long> values) {
+        Long[] sorted = values.toArray(new Long[values.size()]);
+        Arrays.sort(sorted, Collections.<Long>reverseOrder());
+        return sorted[sorted.length / 2];
+    }
+}
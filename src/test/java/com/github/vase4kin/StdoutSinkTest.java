@@ -0,0 +1,53 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test printing service messages to the standard output stream
+ */
+public class StdoutSinkTest {
+
+    private static final String SEPARATOR = System.getProperty("line.separator");
+
+    private final ChunkPool pool = new ChunkPool(16, 2);
+
+    @Test
+    public void testChunkedMessagesAreWrittenToTheStreamInOrder() throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StdoutSink sink = new StdoutSink(new PrintStream(output, true, "UTF-8"), ChunkedMessage.UTF_8);
+        ChunkedMessage message = new ChunkedMessage(pool);
+        message.append("##teamcity[testFailed  details='0123456789abcdef 中']");
+
+        sink.print("##teamcity[testStarted  name='é']");
+        sink.print(message);
+        sink.print("##teamcity[testFinished  name='é']");
+        message.release();
+
+        assertThat(new String(output.toByteArray(), ChunkedMessage.UTF_8), is("##teamcity[testStarted  name='é']" + SEPARATOR
+                + "##teamcity[testFailed  details='0123456789abcdef 中']" + SEPARATOR
+                + "##teamcity[testFinished  name='é']" + SEPARATOR));
+    }
+
+    @Test
+    public void testChunkedMessagesAreDecodedForOtherCharsets() throws Exception {
+
+        Charset latin = Charset.forName("ISO-8859-1");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StdoutSink sink = new StdoutSink(new PrintStream(output, true, "ISO-8859-1"), latin);
+        ChunkedMessage message = new ChunkedMessage(pool);
+        message.append("##teamcity[testFailed  details='café']");
+
+        sink.print(message);
+        message.release();
+
+        assertThat(new String(output.toByteArray(), latin), is("##teamcity[testFailed  details='café']" + SEPARATOR));
+    }
+}
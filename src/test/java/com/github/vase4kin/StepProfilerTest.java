@@ -0,0 +1,105 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.TestStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test step durations profiling
+ */
+public class StepProfilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNormalizeStepDescription() {
+
+        assertThat(StepProfiler.normalize("open  page 'about' at 10:45"), is("open page '*' at #:#"));
+        assertThat(StepProfiler.normalize("42 \"users\" are created"), is("# \"*\" are created"));
+        assertThat(StepProfiler.normalize(null), is(""));
+    }
+
+    @Test
+    public void testApostrophesInWordsAreNotQuotes() {
+
+        assertThat(StepProfiler.normalize("Check the user's cart"), is("Check the user's cart"));
+        assertThat(StepProfiler.normalize("Check the user's orders"), is("Check the user's orders"));
+        assertThat(StepProfiler.normalize("the user's profile shows 'Bob'"), is("the user's profile shows '*'"));
+        assertThat(StepProfiler.normalize("open 'Bob's page' twice"), is("open '*' twice"));
+        assertThat(StepProfiler.normalize("quote ' is never closed"), is("quote ' is never closed"));
+    }
+
+    @Test
+    public void testGroupStepsAreAttributedWithSelfTime() {
+
+        StepProfiler profiler = new StepProfiler();
+        TestStep group = TestStepFactory.getSuccessfulTestStep("login as 'admin'");
+        group.setDuration(500);
+        group.addChildStep(TestStepFactory.getSuccessfulTestStep("open page 'login'"));
+        group.addChildStep(TestStepFactory.getSuccessfulTestStep("submit form"));
+
+        profiler.record(Arrays.asList(group, TestStepFactory.getSuccessfulTestStep("login as 'user'")));
+
+        List<StepProfiler.StepStats> steps = profiler.getSlowestSteps(10);
+        assertThat(steps.size(), is(3));
+        assertThat(steps.get(0).getDescription(), is("login as '*'"));
+        assertThat(steps.get(0).getCount(), is(2L));
+        assertThat(steps.get(0).getTotal(), is(600L));
+        assertThat(steps.get(0).getSelf(), is(400L));
+        assertThat(steps.get(0).getMax(), is(500L));
+        assertThat(steps.get(1).getDescription(), is("open page '*'"));
+        assertThat(steps.get(2).getDescription(), is("submit form"));
+    }
+
+    @Test
+    public void testReport() throws IOException {
+
+        StepProfiler profiler = new StepProfiler();
+        profiler.record(Arrays.asList(TestStepFactory.getSuccessfulTestStep("submit form")));
+        File report = new File(folder.getRoot(), "reports/step-profile.csv");
+        final List<String> messages = new ArrayList<>();
+
+        profiler.report(new ServiceMessageSink() {
+            @Override
+            public void print(String message) {
+                messages.add(message);
+            }
+        }, 1, report);
+
+        assertThat(messages.get(0), is("##teamcity[buildStatisticValue  key='thucydides.step.submit_form.totalMs' value='100']"));
+        assertThat(messages.get(1), is("##teamcity[buildStatisticValue  key='thucydides.step.submit_form.maxMs' value='100']"));
+        assertThat(messages.get(2), is("##teamcity[publishArtifacts '" + report.getAbsolutePath() + "']"));
+        assertThat(Files.readAllLines(report.toPath(), Charset.forName("UTF-8")), is(Arrays.asList(
+                "step,count,totalMs,selfMs,avgMs,maxMs,p50Ms,p90Ms",
+                "\"submit form\",1,100,100,100,100,127,127")));
+    }
+
+    @Test
+    public void testStatisticKeysAreIdentifiers() {
+
+        assertThat(StepProfiler.getKey("open page '*' at #:#"), is("open_page_at"));
+        assertThat(StepProfiler.getKey("Check the user's cart"), is("check_the_user_s_cart"));
+        assertThat(StepProfiler.getKey("'*'"), is("step"));
+    }
+
+    @Test
+    public void testEveryJvmWritesItsOwnReport() {
+
+        assertThat(RunFinishedHooks.getJvmFile(new File("reports/step-profile.csv")),
+                is(new File("reports/step-profile-" + RunFinishedHooks.JVM_ID + ".csv")));
+        assertThat(RunFinishedHooks.getJvmFile(new File("profile")), is(new File("profile-" + RunFinishedHooks.JVM_ID)));
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test reporting of hung steps
+ */
+public class StepWatchdogTest {
+
+    private final List<String> messages = new ArrayList<>();
+    private final ServiceMessageSink sink = new ServiceMessageSink() {
+        @Override
+        public void print(String message) {
+            messages.add(message);
+        }
+    };
+
+    @Test
+    public void testHungStepIsReportedOnceWithItsStack() throws InterruptedException {
+
+        final StepWatchdog watchdog = new StepWatchdog(sink, "3", 1000, 2000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<String> hungStep = new AtomicReference<>();
+        Thread test = new Thread("hung-test") {
+            @Override
+            public void run() {
+                watchdog.stepStarted("Open the login page");
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                watchdog.stepFinished();
+                hungStep.set(watchdog.pollHungStep());
+            }
+        };
+        test.start();
+        started.await();
+        while (test.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        long now = System.nanoTime();
+        watchdog.scan(now);
+        assertThat(messages.size(), is(0));
+
+        watchdog.scan(now + TimeUnit.SECONDS.toNanos(1));
+        watchdog.scan(now + TimeUnit.SECONDS.toNanos(1));
+        assertThat(messages.size(), is(1));
+        assertThat(messages.get(0), containsString("text='Step |'Open the login page|' of thread hung-test is running for"));
+        assertThat(messages.get(0), containsString("CountDownLatch.await"));
+        assertThat(messages.get(0), containsString("status='WARNING' flowId='3']"));
+
+        watchdog.scan(now + TimeUnit.SECONDS.toNanos(2));
+        release.countDown();
+        test.join();
+
+        assertThat(messages.size(), is(1));
+        assertThat(hungStep.get(), containsString("Step 'Open the login page' of thread hung-test is running for 2 s"));
+    }
+
+    @Test
+    public void testEnclosingStepIsWatchedAfterNestedStepFinishes() {
+
+        StepWatchdog watchdog = new StepWatchdog(sink, null, 1000, 0);
+        long started = System.nanoTime();
+        watchdog.stepStarted("Log in");
+        watchdog.stepStarted("Type the password");
+        watchdog.stepFinished();
+
+        watchdog.scan(started + TimeUnit.SECONDS.toNanos(10));
+        watchdog.stepFinished();
+        watchdog.scan(started + TimeUnit.SECONDS.toNanos(20));
+
+        assertThat(messages.size(), is(1));
+        assertThat(messages.get(0), containsString("text='Step |'Log in|' of thread "));
+    }
+
+    @Test
+    public void testFinishedStepsAreNotReported() {
+
+        StepWatchdog watchdog = new StepWatchdog(sink, null, 1000, 0);
+        watchdog.stepStarted("Quick step");
+        watchdog.stepFinished();
+
+        watchdog.scan(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+
+        assertThat(messages.size(), is(0));
+        assertThat(watchdog.pollHungStep(), is(nullValue()));
+    }
+}
@@ -9,9 +9,21 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
@@ -52,6 +64,12 @@ public class TeamCityStepListenerTest {
     @After
     public void after() {
         System.clearProperty("teamcity.flowId");
+        System.clearProperty("teamcity.steplistener.parallelExamplesThreshold");
+        System.clearProperty("teamcity.steplistener.retries");
+        System.clearProperty("teamcity.steplistener.chunks");
+        System.clearProperty("teamcity.steplistener.async");
+        System.clearProperty("teamcity.steplistener.watchdog");
+        System.clearProperty("teamcity.steplistener.watchdog.interval");
     }
 
     @Test
@@ -448,6 +466,26 @@ public class TeamCityStepListenerTest {
         assertThat(stringArgumentCaptor.getAllValues().get(2), is(testFinishedExpectedMessage));
     }
 
+    @Test
+    public void testRepeatedStepTitlesInFailureDetailsAreEscapedFromCache() {
+
+        String title = "Check [value] of 'repeated' step";
+        for (String name : new String[]{"firstScenario", "secondScenario"}) {
+            TestOutcome testOutcome = new TestOutcome(name);
+            testOutcome.setUserStory(STORY);
+            testOutcome.recordStep(TestStepFactory.getFailureTestStepWithAssertionError(title));
+            teamCityStepListener.testFinished(testOutcome);
+        }
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(6)).info(stringArgumentCaptor.capture());
+        assertThat(stringArgumentCaptor.getAllValues().get(4), containsString(" details='Steps:|r|nCheck |[value|] of |'repeated|' step (0.1) -> FAILURE|r|nStackTrace|r|n'"));
+
+        long hits = ServiceMessages.ESCAPE_CACHE.getHits();
+        assertThat(ServiceMessages.escape(title), is("Check |[value|] of |'repeated|' step"));
+        assertThat(ServiceMessages.ESCAPE_CACHE.getHits(), is(hits + 1));
+    }
+
     @Test
     public void testMessagePropertyCantBeNullIfResultHasTestFailureCauseInstanceOfNPE() {
 
@@ -838,8 +876,204 @@ public class TeamCityStepListenerTest {
         assertThat(stringArgumentCaptor.getAllValues().get(2), is(testFinishedExpectedMessage));
     }
 
+    @Test
+    public void testCompositeStepIsWatchedAfterSkippedNestedStep() {
+
+        System.setProperty("teamcity.steplistener.watchdog", "1000");
+        System.setProperty("teamcity.steplistener.watchdog.interval", "3600000");
+        before();
+        long started = System.nanoTime();
+
+        teamCityStepListener.stepStarted(ExecutedStepDescription.withTitle("Log in"));
+        teamCityStepListener.skippedStepStarted(ExecutedStepDescription.withTitle("Type the password"));
+        teamCityStepListener.stepIgnored();
+        StepWatchdog.getInstance(null, null, 0, 0, 0).scan(started + TimeUnit.SECONDS.toNanos(10));
+        teamCityStepListener.stepFinished();
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger).info(stringArgumentCaptor.capture());
+        assertThat(stringArgumentCaptor.getValue(), containsString("text='Step |'Log in|' of thread "));
+    }
+
     private void verifyArgumentCaptorCapturesNoLoggerMessages() {
         ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
         verify(logger, never()).info(stringArgumentCaptor.capture());
     }
+
+    @Test
+    public void testParallelExampleRenderingIsIdenticalToSequential() {
+
+        teamCityStepListener.testFinished(getDataDrivenOutcome(teamCityStepListener, 1000));
+
+        ArgumentCaptor<String> sequentialCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(2200)).info(sequentialCaptor.capture());
+
+        System.setProperty("teamcity.steplistener.parallelExamplesThreshold", "100");
+        Logger parallelLogger = mock(Logger.class);
+        TeamCityStepListener parallelListener = spy(new TeamCityStepListener(parallelLogger));
+        doReturn("StackTrace").when(parallelListener).getStackTrace(any(Throwable.class));
+
+        parallelListener.testFinished(getDataDrivenOutcome(parallelListener, 1000));
+
+        ArgumentCaptor<String> parallelCaptor = ArgumentCaptor.forClass(String.class);
+        verify(parallelLogger, times(2200)).info(parallelCaptor.capture());
+        assertThat(parallelCaptor.getAllValues(), is(sequentialCaptor.getAllValues()));
+    }
+
+    @Test
+    public void testRetriedScenarioIsReportedOnceWithFinalAttempt() {
+
+        System.setProperty("teamcity.steplistener.retries", "true");
+        TeamCityStepListener listener = spy(new TeamCityStepListener(logger));
+        doReturn("StackTrace").when(listener).getStackTrace(any(Throwable.class));
+
+        listener.testStarted("retriedScenario");
+        listener.testFinished(getRetriedOutcome(false));
+        listener.testRetried();
+        listener.testStarted("retriedScenario");
+        listener.testFinished(getRetriedOutcome(false));
+        listener.testRetried();
+        listener.testStarted("retriedScenario");
+        listener.testFinished(getRetriedOutcome(true));
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(4)).info(stringArgumentCaptor.capture());
+        assertThat(stringArgumentCaptor.getAllValues().get(0), is("##teamcity[testStarted  name='sprint-1.us-1.story.retriedScenario']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(1), is("##teamcity[testMetadata  testName='sprint-1.us-1.story.retriedScenario' name='attempts' type='number' value='3']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(2), is("##teamcity[testMetadata  testName='sprint-1.us-1.story.retriedScenario' name='attemptDurations' type='text' value='100,100,100']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(3), is("##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.retriedScenario']"));
+    }
+
+    @Test
+    public void testFailedScenarioIsReportedWhenNotRetried() {
+
+        System.setProperty("teamcity.steplistener.retries", "true");
+        TeamCityStepListener listener = spy(new TeamCityStepListener(logger));
+        doReturn("StackTrace").when(listener).getStackTrace(any(Throwable.class));
+
+        listener.testSuiteStarted(STORY);
+        listener.testStarted("retriedScenario");
+        listener.testFinished(getRetriedOutcome(false));
+        verify(logger, times(1)).info(anyString());
+
+        listener.testSuiteFinished();
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(5)).info(stringArgumentCaptor.capture());
+        assertThat(stringArgumentCaptor.getAllValues().get(1), is("##teamcity[testStarted  name='sprint-1.us-1.story.retriedScenario']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(2), containsString("message='the test is failed!'"));
+        assertThat(stringArgumentCaptor.getAllValues().get(3), is("##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.retriedScenario']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(4), is("##teamcity[testSuiteFinished  name='Test story']"));
+    }
+
+    @Test
+    public void testFailedScenarioIsReportedWhenTheRunIsFinished() {
+
+        System.setProperty("teamcity.steplistener.retries", "true");
+        TeamCityStepListener listener = spy(new TeamCityStepListener(logger));
+        doReturn("StackTrace").when(listener).getStackTrace(any(Throwable.class));
+
+        listener.testStarted("retriedScenario");
+        listener.testFinished(getRetriedOutcome(false));
+        verify(logger, times(0)).info(anyString());
+
+        TeamCityStepListener.flushAllPendingAttempts();
+        TeamCityStepListener.flushAllPendingAttempts();
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(3)).info(stringArgumentCaptor.capture());
+        assertThat(stringArgumentCaptor.getAllValues().get(0), is("##teamcity[testStarted  name='sprint-1.us-1.story.retriedScenario']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(1), containsString("message='the test is failed!'"));
+        assertThat(stringArgumentCaptor.getAllValues().get(2), is("##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.retriedScenario']"));
+    }
+
+    @Test
+    public void testFailureDetailsAreWrittenFromChunks() throws IOException {
+
+        System.setProperty("teamcity.steplistener.chunks", "true");
+        File output = File.createTempFile("chunks", ".log");
+        output.deleteOnExit();
+        StringWriter lines = new StringWriter();
+        try (FileChannel channel = new RandomAccessFile(output, "rw").getChannel()) {
+            PrintWriter writer = new PrintWriter(lines, true);
+            TeamCityStepListener listener = spy(new TeamCityStepListener(new StdoutSink(writer, channel)));
+            doReturn("StackTrace").when(listener).getStackTrace(any(Throwable.class));
+
+            listener.testFinished(getRetriedOutcome(false));
+        }
+
+        String separator = System.getProperty("line.separator");
+        assertThat(lines.toString(), is("##teamcity[testStarted  name='sprint-1.us-1.story.retriedScenario']" + separator
+                + "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.retriedScenario']" + separator));
+        assertThat(new String(Files.readAllBytes(output.toPath()), Charset.forName("UTF-8")),
+                is("##teamcity[testFailed  name='sprint-1.us-1.story.retriedScenario' message='the test is failed!' details='Steps:|r|nRetried scenario step (0.1) -> FAILURE|r|nStackTrace|r|n']" + separator));
+    }
+
+    @Test
+    public void testOutcomesAreFormattedOffTheTestThreadInOrder() throws InterruptedException {
+
+        System.setProperty("teamcity.steplistener.async", "true");
+        final CountDownLatch formatting = new CountDownLatch(1);
+        TeamCityStepListener listener = spy(new TeamCityStepListener(logger));
+        doAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws InterruptedException {
+                formatting.await();
+                return "StackTrace";
+            }
+        }).when(listener).getStackTrace(any(Throwable.class));
+
+        listener.testSuiteStarted(STORY);
+        listener.testFinished(getRetriedOutcome(false));
+        listener.testSuiteFinished();
+        verify(logger, never()).info("##teamcity[testSuiteFinished  name='Test story']");
+
+        formatting.countDown();
+        assertThat(listener.awaitFormatted(5000), is(true));
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(5)).info(stringArgumentCaptor.capture());
+        assertThat(stringArgumentCaptor.getAllValues().get(0), is("##teamcity[testSuiteStarted  name='Test story']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(1), is("##teamcity[testStarted  name='sprint-1.us-1.story.retriedScenario']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(2), containsString("details='Steps:|r|nRetried scenario step (0.1) -> FAILURE|r|nStackTrace|r|n'"));
+        assertThat(stringArgumentCaptor.getAllValues().get(3), is("##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.retriedScenario']"));
+        assertThat(stringArgumentCaptor.getAllValues().get(4), is("##teamcity[testSuiteFinished  name='Test story']"));
+    }
+
+    private TestOutcome getRetriedOutcome(boolean passed) {
+        TestOutcome testOutcome = new TestOutcome("retriedScenario");
+        testOutcome.setUserStory(STORY);
+        if (passed) {
+            testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Retried scenario step"));
+        } else {
+            testOutcome.recordStep(TestStepFactory.getFailureTestStepWithAssertionError("Retried scenario step"));
+            testOutcome.setTestFailureCause(failureCause);
+        }
+        return testOutcome;
+    }
+
+    private TestOutcome getDataDrivenOutcome(TeamCityStepListener listener, int examplesCount) {
+        TestOutcome testOutcome = new TestOutcome("parametrisedScenario");
+        testOutcome.useExamplesFrom(dataTable);
+        testOutcome.setUserStory(STORY);
+        for (int i = 0; i < examplesCount; i++) {
+            final String value = "exampleTableValue" + i;
+            listener.exampleStarted(new HashMap<String, String>() {{
+                put("value", value);
+            }});
+            TestStep testStep;
+            if (i % 10 == 0) {
+                testStep = TestStepFactory.getFailureTestStep("[" + i + "] {value=" + value);
+                testStep.addChildStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed scenario child step"));
+            } else if (i % 10 == 1) {
+                testStep = TestStepFactory.getPendingTestStep("[" + i + "] {value=" + value);
+                testStep.addChildStep(TestStepFactory.getPendingTestStep("Pending scenario child step"));
+            } else {
+                testStep = TestStepFactory.getSuccessfulTestStep("[" + i + "] {value=" + value);
+                testStep.addChildStep(TestStepFactory.getSuccessfulTestStep("Successful scenario child step"));
+            }
+            testOutcome.recordStep(testStep);
+        }
+        return testOutcome;
+    }
 }
@@ -0,0 +1,33 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Test class to test printing service messages to two sinks
+ */
+public class TeeSinkTest {
+
+    @Test
+    public void testMessagesArePrintedToBothSinks() {
+
+        ServiceMessageSink first = mock(ServiceMessageSink.class);
+        ServiceMessageSink second = mock(ServiceMessageSink.class);
+
+        new TeeSink(first, second).print("##teamcity[testStarted  name='story.scenario']");
+
+        verify(first).print("##teamcity[testStarted  name='story.scenario']");
+        verify(second).print("##teamcity[testStarted  name='story.scenario']");
+    }
+
+    @Test
+    public void testChunkModeIsOffWhileTeeing() {
+
+        ServiceMessageSink sink = new TeeSink(mock(ChunkedMessageSink.class), mock(ServiceMessageSink.class));
+
+        assertFalse(sink instanceof ChunkedMessageSink);
+    }
+}
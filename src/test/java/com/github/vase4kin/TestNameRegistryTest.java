@@ -0,0 +1,65 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test detection of distinct tests reported with the same name
+ */
+public class TestNameRegistryTest {
+
+    @Test
+    public void testSameTestKeepsItsName() {
+
+        TestNameRegistry registry = new TestNameRegistry(16);
+
+        assertThat(registry.register("story.scenario", "stories/story.story#scenario"), is("story.scenario"));
+        assertThat(registry.register("story.scenario", "stories/story.story#scenario"), is("story.scenario"));
+        assertThat(registry.size(), is(1));
+    }
+
+    @Test
+    public void testCollidingTestGetsStableSuffix() {
+
+        TestNameRegistry registry = new TestNameRegistry(16);
+        registry.register("a_b.scenario", "stories/a.b.story#scenario");
+
+        String name = registry.register("a_b.scenario", "stories/a_b.story#scenario");
+
+        assertThat(name, is(not("a_b.scenario")));
+        assertThat(name.startsWith("a_b.scenario~"), is(true));
+        assertThat(registry.register("a_b.scenario", "stories/a_b.story#scenario"), is(name));
+        assertThat(registry.getCollisions().get("stories/a_b.story#scenario"), is(name));
+        assertThat(registry.markReported("stories/a_b.story#scenario"), is(true));
+        assertThat(registry.markReported("stories/a_b.story#scenario"), is(false));
+    }
+
+    @Test
+    public void testNamesAreNotCheckedAfterCapacity() {
+
+        TestNameRegistry registry = new TestNameRegistry(2);
+        registry.register("first", "first");
+        registry.register("second", "second");
+
+        assertThat(registry.register("third", "third"), is("third"));
+        assertThat(registry.register("third", "other"), is("third"));
+        assertThat(registry.isFull(), is(true));
+        assertThat(registry.markFullReported(), is(true));
+        assertThat(registry.markFullReported(), is(false));
+    }
+
+    @Test
+    public void testManyNamesAreRegisteredWithoutFalseCollisions() {
+
+        TestNameRegistry registry = new TestNameRegistry(200000);
+        for (int i = 0; i < 200000; i++) {
+            String name = "story" + i / 100 + ".scenario" + i % 100;
+            assertThat(registry.register(name, name), is(name));
+        }
+        assertThat(registry.size(), is(200000));
+        assertThat(registry.getCollisions().isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.vase4kin;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class to test Flight Recorder events, their bundled settings and the recording analyzer
+ */
+public class FlightRecorderEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEventsAreDisabledWithoutSettings() {
+
+        FlightRecorderEvents events = new FlightRecorderEvents();
+
+        assertThat(events.beginCallback("testStarted"), is(nullValue()));
+        assertThat(events.beginMessage(), is(nullValue()));
+        assertThat(events.beginSinkWrite(), is(nullValue()));
+    }
+
+    @Test
+    public void testRecordedEventsAreAnalyzed() throws IOException, ParseException {
+
+        File settings = new File(folder.getRoot(), "settings/" + FlightRecordingAnalyzer.SETTINGS);
+        FlightRecordingAnalyzer.extractSettings(settings);
+        assertTrue(settings.isFile());
+        Configuration configuration = Configuration.create(settings.toPath());
+        FlightRecorderEvents events = new FlightRecorderEvents();
+        File recordingFile = new File(folder.getRoot(), "listener.jfr");
+
+        try (Recording recording = new Recording(configuration)) {
+            recording.start();
+            Object callback = events.beginCallback("testFinished");
+            assertThat(callback, is(notNullValue()));
+            Object message = events.beginMessage();
+            events.endMessage(message, "testFinished", "##teamcity[testFinished  name='story.scenario']");
+            Object sinkWrite = events.beginSinkWrite();
+            events.endSinkWrite(sinkWrite, "##teamcity[testFinished  name='story.scenario']");
+            events.endCallback(callback, "story.scenario");
+            events.endCallback(events.beginCallback("stepStarted"), null);
+            recording.stop();
+            recording.dump(recordingFile.toPath());
+        }
+
+        FlightRecordingAnalyzer analyzer = new FlightRecordingAnalyzer();
+        analyzer.analyze(recordingFile);
+        StringBuilder out = new StringBuilder();
+        analyzer.print(out, 10);
+
+        assertThat(out.toString(), containsString("stepStarted"));
+        assertThat(out.toString(), containsString("testFinished             count=1"));
+        assertThat(out.toString(), containsString("bytes=47"));
+        assertThat(out.toString(), containsString("Sink writes: count=1"));
+        assertThat(out.toString(), containsString("Listener time per test (top 1 of 1):"));
+        assertThat(out.toString(), containsString("story.scenario"));
+    }
+}